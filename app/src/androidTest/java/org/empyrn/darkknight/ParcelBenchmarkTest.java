@@ -0,0 +1,128 @@
+package org.empyrn.darkknight;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.empyrn.darkknight.engine.ThinkingInfo;
+import org.empyrn.darkknight.gamelogic.Move;
+import org.empyrn.darkknight.gamelogic.Position;
+import org.empyrn.darkknight.gamelogic.PositionSnapshot;
+import org.empyrn.darkknight.gamelogic.TextIO;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the size and speed of the Parcelable encodings of moves, positions and thinking info
+ * with the Serializable path they replace when state is saved. Results are logged.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParcelBenchmarkTest {
+	private static final String TAG = ParcelBenchmarkTest.class.getSimpleName();
+	private static final int ROUNDS = 2000;
+	private static final String FEN =
+			"r1bq1rk1/pp2bppp/2n1pn2/3p4/2PP4/2N1PN2/PP3PPP/R2QKB1R w KQ - 0 9";
+
+	@Test
+	public void move() throws Exception {
+		Move move = new Move(12, 28, 0);
+		compare("Move", move, Move.CREATOR);
+	}
+
+	@Test
+	public void positionSnapshot() throws Exception {
+		PositionSnapshot pos = TextIO.readFEN(FEN).snapshot();
+		compare("PositionSnapshot", pos, PositionSnapshot.CREATOR);
+	}
+
+	@Test
+	public void thinkingInfo() throws Exception {
+		Position pos = TextIO.readFEN(FEN);
+		String[] pvStr = {"c4d5", "e6d5", "f1d3", "c6b4", "d3b1", "c8f5", "e1g1", "f5b1",
+				"a1b1", "b4c6", "b1c1", "f8e8", "c3e2", "e7d6", "e2g3", "a8c8"};
+		int[] pv = new int[pvStr.length];
+		for (int i = 0; i < pv.length; i++) {
+			pv[i] = TextIO.UCIstringToMove(pvStr[i]).toCompact();
+		}
+
+		List<ThinkingInfo.Variation> variations = new ArrayList<>();
+		variations.add(new ThinkingInfo.Variation(18, 35, false, false, false, pv));
+		variations.add(new ThinkingInfo.Variation(18, 21, false, true, false, pv.clone()));
+		List<Move> bookMoves = Collections.singletonList(new Move(5, 19, 0));
+		ThinkingInfo info = new ThinkingInfo("d:18 1234kN 512kN/s", pos.snapshot(), variations,
+				"Bd3:3", bookMoves);
+
+		ThinkingInfo parceled = compare("ThinkingInfo", info, ThinkingInfo.CREATOR);
+		assertEquals(info.pvScore, parceled.pvScore);
+		assertEquals(info.getPvPosition(), parceled.getPvPosition());
+		assertEquals(info.getPvMoves(), parceled.getPvMoves());
+		assertEquals(info.bookMoves, parceled.bookMoves);
+	}
+
+	/**
+	 * Round-trip an object through both encodings, check that the parcel is the smaller one and
+	 * log sizes and times.
+	 *
+	 * @return The object read back from the parcel
+	 */
+	private static <T extends Parcelable & Serializable> T compare(String name, T value,
+	                                                                Parcelable.Creator<T> creator)
+			throws Exception {
+		T fromParcel = null;
+		int parcelSize = 0;
+		long t0 = SystemClock.elapsedRealtimeNanos();
+		for (int i = 0; i < ROUNDS; i++) {
+			Parcel parcel = Parcel.obtain();
+			try {
+				value.writeToParcel(parcel, 0);
+				parcelSize = parcel.dataSize();
+				parcel.setDataPosition(0);
+				fromParcel = creator.createFromParcel(parcel);
+			} finally {
+				parcel.recycle();
+			}
+		}
+		long parcelNanos = (SystemClock.elapsedRealtimeNanos() - t0) / ROUNDS;
+
+		Object fromStream = null;
+		int streamSize = 0;
+		t0 = SystemClock.elapsedRealtimeNanos();
+		for (int i = 0; i < ROUNDS; i++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+				out.writeObject(value);
+			}
+			streamSize = bytes.size();
+			try (ObjectInputStream in = new ObjectInputStream(
+					new ByteArrayInputStream(bytes.toByteArray()))) {
+				fromStream = in.readObject();
+			}
+		}
+		long streamNanos = (SystemClock.elapsedRealtimeNanos() - t0) / ROUNDS;
+
+		Log.i(TAG, name + ": Parcelable " + parcelSize + " bytes, " + parcelNanos / 1000
+				+ " us; Serializable " + streamSize + " bytes, " + streamNanos / 1000 + " us");
+
+		assertTrue(name + " parcel is not smaller", parcelSize < streamSize);
+		if (!(value instanceof ThinkingInfo)) {
+			// ThinkingInfo has no equals(); its fields are compared by the caller
+			assertEquals(value, fromParcel);
+			assertEquals(value, fromStream);
+		}
+		return fromParcel;
+	}
+}
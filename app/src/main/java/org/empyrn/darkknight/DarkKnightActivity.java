@@ -28,9 +28,13 @@ import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
 import android.text.ClipboardManager;
 import android.text.Html;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
@@ -45,15 +49,19 @@ import android.widget.Toast;
 
 import org.empyrn.darkknight.bluetooth.BluetoothGameController;
 import org.empyrn.darkknight.bluetooth.DeviceListActivity;
+import org.empyrn.darkknight.engine.StrengthLevel;
 import org.empyrn.darkknight.engine.ThinkingInfo;
 import org.empyrn.darkknight.gamelogic.ChessParseError;
 import org.empyrn.darkknight.gamelogic.EngineController;
 import org.empyrn.darkknight.gamelogic.Game;
+import org.empyrn.darkknight.gamelogic.GameAnnotator;
 import org.empyrn.darkknight.gamelogic.GameController;
 import org.empyrn.darkknight.gamelogic.Move;
+import org.empyrn.darkknight.gamelogic.PgnToken;
 import org.empyrn.darkknight.gamelogic.Position;
 import org.empyrn.darkknight.gamelogic.PromotionPiece;
 import org.empyrn.darkknight.gamelogic.TextIO;
+import org.empyrn.darkknight.view.MoveListAdapter;
 
 import java.io.File;
 import java.io.FileFilter;
@@ -90,6 +98,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 	private TextView mStatusView;
 	private ScrollView moveListScrollView;
 	private TextView moveListView;
+	private RecyclerView moveListRecyclerView;
 	private Snackbar mCurrentSnackbar;
 	private FloatingActionButton mFab;
 	private TextView thinkingInfoView;
@@ -139,6 +148,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 
 		if (savedInstanceState != null) {
 			boardFlippedForAnalysis = savedInstanceState.getBoolean("BoardFlippedForAnalysis", false);
+			currentThinkingInfo = savedInstanceState.getParcelable("ThinkingInfo");
 		}
 
 		if (savedInstanceState == null || savedInstanceState.getInt("ControllerMode", MODE_ENGINE) == MODE_ENGINE) {
@@ -161,8 +171,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		mGameController.setGui(this);
 
 		if (mGameController.getGameTextListener() == null) {
-			mGameController.setGameTextListener(new PGNScreenText(PreferenceManager.getDefaultSharedPreferences(this),
-					new PGNOptions()));
+			mGameController.setGameTextListener(createGameTextListener());
 		}
 
 		if (!mGameController.hasGame()) {
@@ -203,16 +212,23 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 	}
 
 	private boolean initEngineController() {
+		// the engine is set up by DarkKnightApplication
 		try {
-			mGameController = EngineController.getInstance();
-			mGameController.setGui(this);
-			return true;
-		} catch (UnsatisfiedLinkError e) {
-			// critical error, abort
-			Toast.makeText(this, R.string.dk_this_platform_not_supported, Toast.LENGTH_LONG).show();
-			finish();
-			return false;
+			if (DarkKnightApplication.isEngineSupported()) {
+				mGameController = EngineController.getInstance();
+				mGameController.setGui(this);
+				return true;
+			}
+		} catch (LinkageError e) {
+			// a library that failed to load at app start is reported as a missing class from
+			// then on
+			Log.e(getClass().getSimpleName(), "Engine not supported on this platform", e);
 		}
+
+		// critical error, abort
+		Toast.makeText(this, R.string.dk_this_platform_not_supported, Toast.LENGTH_LONG).show();
+		finish();
+		return false;
 	}
 
 	private static byte[] strToByteArr(String str) {
@@ -265,6 +281,10 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 				byte[] data = mGameController.getPersistableGameState();
 				outState.putByteArray("Status", data);
 			}
+
+			if (currentThinkingInfo != null) {
+				outState.putParcelable("ThinkingInfo", currentThinkingInfo);
+			}
 		}
 	}
 
@@ -319,6 +339,22 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		moveListScrollView.setFocusable(false);
 		moveListView.setFocusable(false);
 
+		moveListRecyclerView = (RecyclerView) findViewById(R.id.move_list_recycler_view);
+		moveListRecyclerView.setFocusable(false);
+		moveListRecyclerView.setHasFixedSize(true);
+		moveListRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+		// rows change on every move; skip the change animations
+		moveListRecyclerView.setItemAnimator(null);
+
+		// bind the move list text without copying it, so that edits made to it in place only
+		// re-layout the affected lines
+		moveListView.setSpannableFactory(new Spannable.Factory() {
+			@Override
+			public Spannable newSpannable(CharSequence source) {
+				return (Spannable) source;
+			}
+		});
+
 		mChessBoardView = (ChessBoardView) findViewById(R.id.chessboard);
 		mChessBoardView.setFocusable(true);
 		mChessBoardView.requestFocus();
@@ -410,7 +446,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 			chessboardEnabled = mGameController.isGameActive() || mGameController.isAnalyzing();
 			setBoardFlip();
 		} else {
-			moveListView.setText(null);
+			clearMoveListDisplay();
 			mChessBoardView.clearMoveHints();
 			mChessBoardView.clearSelection();
 			mChessBoardView.setPosition(null);
@@ -446,8 +482,19 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		mGameController.setGui(this);
 
 		if (mGameController instanceof EngineController) {
-			((EngineController) mGameController).setMaxDepth(
-					Integer.valueOf(mSettings.getString("difficultyDepth2", "3")));
+			((EngineController) mGameController).setStrengthLevel(getStrengthLevel());
+			((EngineController) mGameController).setTimeControl(
+					Integer.valueOf(mSettings.getString("timeControl", "0")),
+					Integer.valueOf(mSettings.getString("movesPerSession", "0")),
+					Integer.valueOf(mSettings.getString("timeIncrement", "0")));
+			((EngineController) mGameController).setMoveTime(
+					Integer.valueOf(mSettings.getString("moveTime", "0")));
+			((EngineController) mGameController).setPondering(
+					mSettings.getBoolean("ponder", false));
+			((EngineController) mGameController).setAnalysisLines(
+					Integer.valueOf(mSettings.getString("analysisLines", "1")));
+			((EngineController) mGameController).setThinkingUpdateInterval(
+					Integer.valueOf(mSettings.getString("thinkingUpdateInterval", "0")));
 		} else if (mGameController instanceof BluetoothGameController) {
 			if (((BluetoothGameController) mGameController).isListening()) {
 				onWaitingForOpponent();
@@ -543,6 +590,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		final MenuItem flipBoardMenuItem = menu.findItem(R.id.item_flip_board);
 		final MenuItem recreateActivityMenuItem = menu.findItem(R.id.recreate_activity);
 		final MenuItem loadPgnMenuItem = menu.findItem(R.id.item_load_pgn_file);
+		final MenuItem annotateGameMenuItem = menu.findItem(R.id.item_annotate_game);
 
 		recreateActivityMenuItem.setVisible(BuildConfig.DEBUG);
 
@@ -575,6 +623,12 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		stopGameMenuItem.setVisible(gameIsAlive && !(mGameController instanceof BluetoothGameController));
 		loadPgnMenuItem.setVisible(mGameController instanceof EngineController);
 
+		annotateGameMenuItem.setVisible(hasGame && mGameController instanceof EngineController);
+		if (mGameController instanceof EngineController) {
+			annotateGameMenuItem.setTitle(((EngineController) mGameController).isAnnotating()
+					? R.string.stop_annotation : R.string.annotate_game);
+		}
+
 		final MenuItem bluetoothSubmenu = menu.findItem(R.id.bluetooth_submenu);
 		bluetoothSubmenu.setVisible(hasBluetooth);
 		if (hasBluetooth) {
@@ -661,8 +715,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 			}
 
 			mGameController.setGameMode(getNextColor());
-			mGameController.setGameTextListener(new PGNScreenText(PreferenceManager.getDefaultSharedPreferences(this),
-					new PGNOptions()));
+			mGameController.setGameTextListener(createGameTextListener());
 			mGameController.startGame();
 		}
 
@@ -680,7 +733,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		mGameController = null;
 
 		resetChessBoardView();
-		moveListView.setText(null);
+		clearMoveListDisplay();
 	}
 
 	private void resetChessBoardView() {
@@ -727,6 +780,18 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 				boardFlippedForAnalysis = !boardFlippedForAnalysis;
 				setBoardFlip();
 				return true;
+			case R.id.item_annotate_game: {
+				EngineController controller = (EngineController) mGameController;
+				if (controller.isAnnotating()) {
+					controller.cancelAnnotation();
+					Toast.makeText(getApplicationContext(), R.string.annotation_stopped,
+							Toast.LENGTH_SHORT).show();
+				} else {
+					controller.annotateGame(annotationListener);
+				}
+				invalidateUi();
+				return true;
+			}
 			case R.id.item_editboard: {
 				Intent i = new Intent(DarkKnightActivity.this, EditBoardActivity.class);
 				i.setAction(mGameController.getGame().currPos().getFEN());
@@ -815,8 +880,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		final BluetoothGameController bGameCtrl
 				= new BluetoothGameController(getApplicationContext());
 		bGameCtrl.setGui(this);
-		bGameCtrl.setGameTextListener(new PGNScreenText(PreferenceManager.getDefaultSharedPreferences(this),
-				new PGNOptions()));
+		bGameCtrl.setGameTextListener(createGameTextListener());
 		mGameController = bGameCtrl;
 
 		setBluetoothDiscoverable();
@@ -853,6 +917,22 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		}
 	}
 
+	/**
+	 * Get the strength level from the settings, or from the depth setting of earlier versions if
+	 * no level has been chosen yet.
+	 */
+	private StrengthLevel getStrengthLevel() {
+		if (mSettings.contains("strengthLevel")) {
+			return StrengthLevel.fromNumber(
+					Integer.valueOf(mSettings.getString("strengthLevel", "0")));
+		} else if (mSettings.contains("difficultyDepth2")) {
+			return StrengthLevel.fromDepth(
+					Integer.valueOf(mSettings.getString("difficultyDepth2", "3")));
+		} else {
+			return StrengthLevel.DEFAULT;
+		}
+	}
+
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
 		switch (requestCode) {
@@ -883,8 +963,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 							= new BluetoothGameController(getApplicationContext());
 					bGameCtrl.setGameMode(getNextColor());
 					bGameCtrl.setGui(this);
-					bGameCtrl.setGameTextListener(new PGNScreenText(PreferenceManager.getDefaultSharedPreferences(this),
-							new PGNOptions()));
+					bGameCtrl.setGameTextListener(createGameTextListener());
 					mGameController = bGameCtrl;
 
 					// get the device MAC address
@@ -919,8 +998,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 
 		mGameController.stopGame(false);
 		mGameController.setGameMode(GameMode.ANALYSIS);
-		mGameController.setGameTextListener(new PGNScreenText(PreferenceManager.getDefaultSharedPreferences(this),
-				new PGNOptions()));
+		mGameController.setGameTextListener(createGameTextListener());
 
 		try {
 			((EngineController) mGameController).startNewGameFromFENorPGN(pgn);
@@ -955,8 +1033,44 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		mStatusView.setText(str);
 	}
 
-	private PGNScreenText getPGNTokenReceiver() {
-		return (PGNScreenText) mGameController.getGameTextListener();
+	/**
+	 * Shows the progress of a game annotation in the status line.
+	 */
+	private final GameAnnotator.Listener annotationListener = new GameAnnotator.Listener() {
+		@Override
+		public void onAnnotationProgress(int done, int total) {
+			if (mStatusView != null) {
+				mStatusView.setText(getString(R.string.annotation_progress, done, total));
+			}
+		}
+
+		@Override
+		public void onAnnotationFinished(boolean completed) {
+			if (mStatusView == null) {
+				return;
+			}
+
+			mStatusView.setText(mGameController != null ? mGameController.getStatusText() : null);
+			Toast.makeText(getApplicationContext(), completed ? R.string.annotation_finished
+					: R.string.annotation_stopped, Toast.LENGTH_SHORT).show();
+			invalidateUi();
+		}
+	};
+
+	/**
+	 * Create a receiver for the text of a new game, using the move list presentation chosen in the
+	 * settings.
+	 */
+	private PgnToken.PgnTokenReceiver createGameTextListener() {
+		if (mSettings.getBoolean("virtualMoveList", false)) {
+			return new MoveListAdapter(mSettings, new PGNOptions());
+		} else {
+			return new PGNScreenText(mSettings, new PGNOptions());
+		}
+	}
+
+	private PgnToken.PgnTokenReceiver getPGNTokenReceiver() {
+		return mGameController.getGameTextListener();
 	}
 
 	private String getStringForGameMode(GameMode gameMode) {
@@ -1084,7 +1198,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		{
 			String s = "";
 			if (mShowThinking || (gameMode == GameMode.ANALYSIS)) {
-				s = currentThinkingInfo.pvStr;
+				s = currentThinkingInfo.getPvStr();
 			}
 
 			thinkingInfoView.setText(s, TextView.BufferType.SPANNABLE);
@@ -1118,7 +1232,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		List<Move> hints = null;
 
 		if (mShowThinking || (gameMode == GameMode.ANALYSIS)) {
-			hints = currentThinkingInfo.pvMoves;
+			hints = currentThinkingInfo.getPvMoves();
 		}
 
 		if ((hints == null) && mShowBookHints) {
@@ -1140,7 +1254,33 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 	}
 
 	private void updateMoveListDisplay() {
-		moveListView.setText(getPGNTokenReceiver().getSpannableData());
+		PgnToken.PgnTokenReceiver receiver = getPGNTokenReceiver();
+		if (receiver instanceof MoveListAdapter) {
+			MoveListAdapter adapter = (MoveListAdapter) receiver;
+			moveListScrollView.setVisibility(View.GONE);
+			moveListRecyclerView.setVisibility(View.VISIBLE);
+			if (moveListRecyclerView.getAdapter() != adapter) {
+				moveListRecyclerView.setAdapter(adapter);
+			}
+
+			if (adapter.getCurrentRow() >= 0) {
+				moveListRecyclerView.scrollToPosition(adapter.getCurrentRow());
+			}
+		} else if (receiver instanceof PGNScreenText) {
+			moveListRecyclerView.setVisibility(View.GONE);
+			moveListRecyclerView.setAdapter(null);
+			moveListScrollView.setVisibility(View.VISIBLE);
+
+			SpannableStringBuilder moveListText = ((PGNScreenText) receiver).getSpannableData();
+			if (moveListView.getText() != moveListText) {
+				moveListView.setText(moveListText, TextView.BufferType.SPANNABLE);
+			}
+		}
+	}
+
+	private void clearMoveListDisplay() {
+		moveListView.setText(null);
+		moveListRecyclerView.setAdapter(null);
 	}
 
 
@@ -1446,7 +1586,8 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 
 		invalidateUi();
 
-		if (getPGNTokenReceiver().atEnd()) {
+		if (getPGNTokenReceiver() instanceof PGNScreenText
+				&& ((PGNScreenText) getPGNTokenReceiver()).atEnd()) {
 			moveListScrollView.fullScroll(ScrollView.FOCUS_DOWN);
 		}
 
@@ -1527,7 +1668,7 @@ public class DarkKnightActivity extends AppCompatActivity implements GUIInterfac
 		mChessBoardView.clearSelection();
 		mChessBoardView.setPosition(mGameController.getGame().currPos());
 
-		moveListView.setText(getPGNTokenReceiver().getSpannableData());
+		updateMoveListDisplay();
 
 		// show the FAB again
 		mFab.show();
@@ -0,0 +1,44 @@
+package org.empyrn.darkknight;
+
+import android.app.Application;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import org.empyrn.darkknight.engine.AnalysisCache;
+import org.empyrn.darkknight.engine.EngineBootstrapper;
+import org.empyrn.darkknight.engine.EnginePlayer;
+import org.empyrn.darkknight.engine.EngineResources;
+import org.empyrn.darkknight.engine.NativePipedProcess;
+
+/**
+ * Starts booting the engine as soon as the app process starts, while the UI is still being set
+ * up, so the engine is ready by the time the first game needs it.
+ */
+public class DarkKnightApplication extends Application {
+	private static volatile boolean engineSupported = true;
+
+	/**
+	 * @return False if the engine's native code could not be loaded on this platform
+	 */
+	public static boolean isEngineSupported() {
+		return engineSupported;
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+
+		try {
+			NativePipedProcess.setEngineDirectory(getApplicationInfo().nativeLibraryDir);
+			EngineResources.init(this);
+			AnalysisCache.init(this);
+			EnginePlayer.setUseInProcessEngine(PreferenceManager.getDefaultSharedPreferences(this)
+					.getBoolean("inProcessEngine", false));
+			EngineBootstrapper.getInstance().boot();
+		} catch (UnsatisfiedLinkError e) {
+			// the activity tells the user once it finds out
+			engineSupported = false;
+			Log.e(getClass().getSimpleName(), "Engine not supported on this platform", e);
+		}
+	}
+}
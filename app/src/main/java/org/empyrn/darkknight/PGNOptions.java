@@ -1,5 +1,7 @@
 package org.empyrn.darkknight;
 
+import android.content.SharedPreferences;
+
 import java.io.Serializable;
 
 /** Settings controlling PGN import/export */
@@ -38,4 +40,20 @@ public final class PGNOptions implements Serializable {
 		exp = new Export();
 		exp.moveNrAfterNag = true;
 	}
+
+	/** Read the viewer, import and export settings from the user's preferences. */
+	public final void readPreferences(SharedPreferences settings) {
+		view.variations = settings.getBoolean("viewVariations", true);
+		view.comments = settings.getBoolean("viewComments", true);
+		view.nag = settings.getBoolean("viewNAG", true);
+		view.headers = settings.getBoolean("viewHeaders", false);
+		imp.variations = settings.getBoolean("importVariations", true);
+		imp.comments = settings.getBoolean("importComments", true);
+		imp.nag = settings.getBoolean("importNAG", true);
+		exp.variations = settings.getBoolean("exportVariations", true);
+		exp.comments = settings.getBoolean("exportComments", true);
+		exp.nag = settings.getBoolean("exportNAG", true);
+		exp.playerAction = settings.getBoolean("exportPlayerAction", false);
+		exp.clockInfo = settings.getBoolean("exportTime", false);
+	}
 }
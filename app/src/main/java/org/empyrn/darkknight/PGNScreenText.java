@@ -11,15 +11,22 @@ import android.text.style.StyleSpan;
 import org.empyrn.darkknight.gamelogic.GameTree;
 import org.empyrn.darkknight.gamelogic.PgnToken;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Created by nick on 1/17/16.
  * <p/>
  * Renders PGN data for display.
+ * <p/>
+ * Each walk of the game tree is rendered into a scratch buffer. When the walk is complete, only
+ * the part of the text that differs from what is currently displayed is replaced, so a view
+ * bound to {@link #getSpannableData()} only has to re-layout the affected lines.
  */
 public class PGNScreenText implements PgnToken.PgnTokenReceiver {
-	private SpannableStringBuilder sb = new SpannableStringBuilder();
+	private final SpannableStringBuilder sb = new SpannableStringBuilder();
+	private final StringBuilder pending = new StringBuilder(4096);
 	private int prevType = PgnToken.EOF;
 	private int nestLevel = 0;
 	private boolean col0 = true;
@@ -37,30 +44,60 @@ public class PGNScreenText implements PgnToken.PgnTokenReceiver {
 	}
 
 	private HashMap<GameTree.Node, NodeInfo> nodeToCharPos;
+	private HashMap<GameTree.Node, NodeInfo> pendingNodeToCharPos;
+
+	/**
+	 * A style span, as rendered. The span object is only created once the span is applied.
+	 */
+	private static final class SpanInfo {
+		static final int BOLD = 0;
+		static final int INDENT = 1;
+
+		final int kind;
+		final int indent;
+		int start, end;
+		Object span;
+
+		SpanInfo(int kind, int indent, int start, int end) {
+			this.kind = kind;
+			this.indent = indent;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof SpanInfo)) {
+				return false;
+			}
+
+			SpanInfo other = (SpanInfo) o;
+			return kind == other.kind && indent == other.indent && start == other.start
+					&& end == other.end;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((kind * 31 + indent) * 31 + start) * 31 + end;
+		}
+	}
+
+	private List<SpanInfo> spans = new ArrayList<>();
+	private List<SpanInfo> pendingSpans = new ArrayList<>();
 
 	public PGNScreenText(SharedPreferences settings, PGNOptions options) {
 		this.options = options;
 
-		options.view.variations = settings
-				.getBoolean("viewVariations", true);
-		options.view.comments = settings.getBoolean("viewComments", true);
-		options.view.nag = settings.getBoolean("viewNAG", true);
-		options.view.headers = settings.getBoolean("viewHeaders", false);
-		options.imp.variations = settings.getBoolean("importVariations",
-				true);
-		options.imp.comments = settings.getBoolean("importComments", true);
-		options.imp.nag = settings.getBoolean("importNAG", true);
-		options.exp.variations = settings.getBoolean("exportVariations",
-				true);
-		options.exp.comments = settings.getBoolean("exportComments", true);
-		options.exp.nag = settings.getBoolean("exportNAG", true);
-		options.exp.playerAction = settings.getBoolean("exportPlayerAction",
-				false);
-		options.exp.clockInfo = settings.getBoolean("exportTime", false);
+		options.readPreferences(settings);
 
 		nodeToCharPos = new HashMap<>();
+		pendingNodeToCharPos = new HashMap<>();
 	}
 
+	/**
+	 * Get the rendered text. The same object is returned for the lifetime of this instance and is
+	 * updated in place, so it can be bound to a view once.
+	 */
 	public final SpannableStringBuilder getSpannableData() {
 		return sb;
 	}
@@ -75,31 +112,44 @@ public class PGNScreenText implements PgnToken.PgnTokenReceiver {
 
 	int paraStart = 0;
 	int paraIndent = 0;
-	boolean paraBold = false;
+	int boldStart = -1;
 
 	private void newLine() {
 		if (!col0) {
 			if (paraIndent > 0) {
-				int paraEnd = sb.length();
+				int paraEnd = pending.length();
 				int indentStep = 15;
 				int indent = paraIndent * indentStep;
-				sb.setSpan(new LeadingMarginSpan.Standard(indent),
-						paraStart, paraEnd,
-						Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+				pendingSpans.add(new SpanInfo(SpanInfo.INDENT, indent, paraStart, paraEnd));
 			}
-			if (paraBold) {
-				int paraEnd = sb.length();
-				sb.setSpan(new StyleSpan(Typeface.BOLD), paraStart,
-						paraEnd, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-			}
-			sb.append('\n');
-			paraStart = sb.length();
+			endBold();
+			pending.append('\n');
+			paraStart = pending.length();
 			paraIndent = nestLevel;
-			paraBold = false;
 		}
 		col0 = true;
 	}
 
+	/**
+	 * Mainline moves are shown in bold. Runs are broken at each move number, so appending a move
+	 * doesn't invalidate a span covering the whole mainline paragraph.
+	 */
+	private void startBold(int start) {
+		if (boldStart < 0) {
+			boldStart = start;
+		}
+	}
+
+	private void endBold() {
+		if (boldStart >= 0) {
+			int boldEnd = pending.length();
+			if (boldEnd > boldStart) {
+				pendingSpans.add(new SpanInfo(SpanInfo.BOLD, 0, boldStart, boldEnd));
+			}
+			boldStart = -1;
+		}
+	}
+
 	boolean pendingNewLine = false;
 
 	public void processToken(GameTree.Node node, int type, String token) {
@@ -109,8 +159,9 @@ public class PGNScreenText implements PgnToken.PgnTokenReceiver {
 				col0 = false;
 				newLine();
 			} else {
-				sb.clear();
-				paraBold = false;
+				pending.setLength(0);
+				pendingSpans.clear();
+				boldStart = -1;
 			}
 		}
 		if (pendingNewLine) {
@@ -121,66 +172,75 @@ public class PGNScreenText implements PgnToken.PgnTokenReceiver {
 		}
 		switch (type) {
 			case PgnToken.STRING:
-				sb.append(" \"");
-				sb.append(token);
-				sb.append('"');
+				pending.append(" \"");
+				pending.append(token);
+				pending.append('"');
 				break;
 			case PgnToken.INTEGER:
+				if (nestLevel == 0) {
+					endBold();
+				}
 				if ((prevType != PgnToken.LEFT_PAREN)
 						&& (prevType != PgnToken.RIGHT_BRACKET) && !col0)
-					sb.append(' ');
-				sb.append(token);
+					pending.append(' ');
+				if (nestLevel == 0) {
+					startBold(pending.length());
+				}
+				pending.append(token);
 				col0 = false;
 				break;
 			case PgnToken.PERIOD:
-				sb.append('.');
+				pending.append('.');
 				col0 = false;
 				break;
 			case PgnToken.ASTERISK:
-				sb.append(" *");
+				pending.append(" *");
 				col0 = false;
 				break;
 			case PgnToken.LEFT_BRACKET:
-				sb.append('[');
+				pending.append('[');
 				col0 = false;
 				break;
 			case PgnToken.RIGHT_BRACKET:
-				sb.append("]\n");
+				pending.append("]\n");
 				col0 = false;
 				break;
 			case PgnToken.LEFT_PAREN:
+				endBold();
 				nestLevel++;
 				if (col0)
 					paraIndent++;
 				newLine();
-				sb.append('(');
+				pending.append('(');
 				col0 = false;
 				break;
 			case PgnToken.RIGHT_PAREN:
-				sb.append(')');
+				pending.append(')');
 				nestLevel--;
 				pendingNewLine = true;
 				break;
 			case PgnToken.NAG:
-				sb.append(GameTree.Node.nagStr(Integer.parseInt(token)));
+				pending.append(GameTree.Node.nagStr(Integer.parseInt(token)));
 				col0 = false;
 				break;
 			case PgnToken.SYMBOL: {
 				if ((prevType != PgnToken.RIGHT_BRACKET)
 						&& (prevType != PgnToken.LEFT_BRACKET) && !col0)
-					sb.append(' ');
-				int l0 = sb.length();
-				sb.append(token);
-				int l1 = sb.length();
-				nodeToCharPos.put(node, new NodeInfo(l0, l1));
+					pending.append(' ');
+				int l0 = pending.length();
+				if (nestLevel == 0) {
+					startBold(l0);
+				}
+				pending.append(token);
+				int l1 = pending.length();
+				pendingNodeToCharPos.put(node, new NodeInfo(l0, l1));
 				if (endPos < l0)
 					endPos = l0;
 				col0 = false;
-				if (nestLevel == 0)
-					paraBold = true;
 				break;
 			}
 			case PgnToken.COMMENT:
+				endBold();
 				if (prevType == PgnToken.RIGHT_BRACKET) {
 				} else if (nestLevel == 0) {
 					nestLevel++;
@@ -188,16 +248,17 @@ public class PGNScreenText implements PgnToken.PgnTokenReceiver {
 					nestLevel--;
 				} else {
 					if ((prevType != PgnToken.LEFT_PAREN) && !col0) {
-						sb.append(' ');
+						pending.append(' ');
 					}
 				}
-				sb.append(token.replaceAll("[ \t\r\n]+", " ").trim());
+				pending.append(token.replaceAll("[ \t\r\n]+", " ").trim());
 				col0 = false;
 				if (nestLevel == 0)
 					newLine();
 				break;
 			case PgnToken.EOF:
 				newLine();
+				applyPendingText();
 				upToDate = true;
 				break;
 		}
@@ -205,18 +266,89 @@ public class PGNScreenText implements PgnToken.PgnTokenReceiver {
 		prevType = type;
 	}
 
+	/**
+	 * Replace the part of the displayed text that differs from the freshly rendered text, and
+	 * bring the style spans in line with the new rendering without touching unchanged ones.
+	 */
+	private void applyPendingText() {
+		final int oldLen = sb.length();
+		final int newLen = pending.length();
+		final int maxCommon = Math.min(oldLen, newLen);
+
+		int prefix = 0;
+		while (prefix < maxCommon && sb.charAt(prefix) == pending.charAt(prefix)) {
+			prefix++;
+		}
+
+		int suffix = 0;
+		while (suffix < maxCommon - prefix
+				&& sb.charAt(oldLen - 1 - suffix) == pending.charAt(newLen - 1 - suffix)) {
+			suffix++;
+		}
+
+		final int oldEnd = oldLen - suffix;
+		final int newEnd = newLen - suffix;
+		final int delta = newEnd - oldEnd;
+
+		sb.removeSpan(bgSpan);
+
+		// drop spans overlapping the replaced range, and shift the recorded range of spans after it
+		HashMap<SpanInfo, SpanInfo> oldSpans = new HashMap<>();
+		for (SpanInfo si : spans) {
+			if (si.end > prefix && si.start < oldEnd) {
+				sb.removeSpan(si.span);
+			} else {
+				if (si.start >= oldEnd) {
+					si.start += delta;
+					si.end += delta;
+				}
+				oldSpans.put(si, si);
+			}
+		}
+
+		if (prefix < oldEnd || prefix < newEnd) {
+			sb.replace(prefix, oldEnd, pending, prefix, newEnd);
+		}
+
+		List<SpanInfo> newSpans = new ArrayList<>(pendingSpans.size());
+		for (SpanInfo si : pendingSpans) {
+			SpanInfo existing = oldSpans.remove(si);
+			if (existing != null) {
+				newSpans.add(existing);
+			} else {
+				si.span = si.kind == SpanInfo.BOLD ? new StyleSpan(Typeface.BOLD)
+						: new LeadingMarginSpan.Standard(si.indent);
+				sb.setSpan(si.span, si.start, si.end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+				newSpans.add(si);
+			}
+		}
+
+		for (SpanInfo si : oldSpans.values()) {
+			sb.removeSpan(si.span);
+		}
+
+		spans = newSpans;
+		pendingSpans = new ArrayList<>();
+
+		HashMap<GameTree.Node, NodeInfo> tmp = nodeToCharPos;
+		nodeToCharPos = pendingNodeToCharPos;
+		pendingNodeToCharPos = tmp;
+		pendingNodeToCharPos.clear();
+	}
+
 	@Override
 	public void clear() {
-		sb.clear();
+		pending.setLength(0);
+		pendingSpans.clear();
+		pendingNodeToCharPos.clear();
 		prevType = PgnToken.EOF;
 		nestLevel = 0;
 		col0 = true;
 		currPos = 0;
 		endPos = 0;
-		nodeToCharPos.clear();
 		paraStart = 0;
 		paraIndent = 0;
-		paraBold = false;
+		boldStart = -1;
 		pendingNewLine = false;
 
 		upToDate = false;
@@ -0,0 +1,331 @@
+package org.empyrn.darkknight.engine;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.empyrn.darkknight.gamelogic.Move;
+import org.empyrn.darkknight.gamelogic.PositionSnapshot;
+import org.empyrn.darkknight.gamelogic.SearchListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Remembers the results of analysis across engine restarts and app sessions, so that revisiting
+ * a position shows the deepest result found so far at once.
+ * <p/>
+ * The cache is a fixed-size file mapped into memory, organized like the engine's transposition
+ * table: entries are found by Zobrist hash in buckets of {@link #BUCKET_SIZE} slots and checked
+ * with {@link PositionSnapshot#verificationKey()}. When a bucket is full, the shallowest entry is
+ * replaced. Writes go to the mapping and reach the file when the system gets round to it, so
+ * nothing is lost when the app is killed, short of the device itself going down.
+ */
+public final class AnalysisCache {
+	private static final String FILE_NAME = "analysis.cache";
+	private static final int MAGIC = 0x444b4143; // "DKAC"
+	private static final int VERSION = 1;
+
+	/** Number of slots; a power of two. */
+	private static final int NUM_SLOTS = 1 << 16;
+	private static final int BUCKET_SIZE = 4;
+
+	/** Longest PV kept for a position. */
+	public static final int MAX_PV_LENGTH = 22;
+
+	private static final int HEADER_SIZE = 16;
+
+	// slot layout
+	private static final int SLOT_SIZE = 64;
+	private static final int OFFSET_KEY = 0;
+	private static final int OFFSET_VERIFY = 8;
+	private static final int OFFSET_SCORE = 12;
+	private static final int OFFSET_DEPTH = 16;
+	private static final int OFFSET_FLAGS = 17;
+	private static final int OFFSET_PV_LENGTH = 18;
+	private static final int OFFSET_PV = 20;
+
+	private static final int FLAG_MATE = 1;
+	private static final int FLAG_UPPER_BOUND = 2;
+	private static final int FLAG_LOWER_BOUND = 4;
+
+	private static AnalysisCache instance;
+	private static boolean initialized = false;
+
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * The result of an earlier analysis of a position.
+	 */
+	public static final class Entry {
+		public final int depth;
+		public final int score;
+		public final boolean isMate;
+		public final boolean upperBound;
+		public final boolean lowerBound;
+		/** The PV in the form of {@link org.empyrn.darkknight.gamelogic.Move#toCompact()}. */
+		public final int[] pv;
+
+		Entry(int depth, int score, boolean isMate, boolean upperBound, boolean lowerBound,
+		      int[] pv) {
+			this.depth = depth;
+			this.score = score;
+			this.isMate = isMate;
+			this.upperBound = upperBound;
+			this.lowerBound = lowerBound;
+			this.pv = pv;
+		}
+	}
+
+	/**
+	 * @param empty True if the mapped file is all zeros, in which case only the header has to be
+	 *              written
+	 */
+	private AnalysisCache(MappedByteBuffer buffer, boolean empty) {
+		this.buffer = buffer;
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (empty) {
+			writeHeader();
+		}
+	}
+
+	/**
+	 * Start opening the cache file in the app's private storage on a background thread.
+	 * {@link #getInstance()} returns null until it is open. If the file can't be opened, analysis
+	 * works as before, without a cache. Later calls have no effect.
+	 */
+	public static synchronized void init(@NonNull Context context) {
+		if (initialized) {
+			return;
+		}
+		initialized = true;
+
+		final File file = new File(context.getFilesDir(), FILE_NAME);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					AnalysisCache cache = open(file);
+					synchronized (AnalysisCache.class) {
+						instance = cache;
+					}
+				} catch (IOException e) {
+					Log.e(AnalysisCache.class.getSimpleName(), "Could not open analysis cache", e);
+				}
+			}
+		}, "AnalysisCache");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static AnalysisCache open(File file) throws IOException {
+		long size = HEADER_SIZE + (long) NUM_SLOTS * SLOT_SIZE;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			FileChannel channel = raf.getChannel();
+			boolean valid = false;
+			if (raf.length() == size) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				channel.read(header, 0);
+				valid = header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+						&& header.getInt(8) == NUM_SLOTS;
+			}
+
+			if (!valid) {
+				// truncating and growing the file zero-fills it without writing every slot
+				raf.setLength(0);
+				raf.setLength(size);
+			}
+
+			// the mapping stays valid after the file is closed
+			return new AnalysisCache(channel.map(FileChannel.MapMode.READ_WRITE, 0, size), !valid);
+		}
+	}
+
+	/**
+	 * @return The cache, or null if it isn't available
+	 */
+	@Nullable
+	public static synchronized AnalysisCache getInstance() {
+		return instance;
+	}
+
+	private void writeHeader() {
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, NUM_SLOTS);
+	}
+
+	private static int bucketOffset(long key) {
+		int slot = (int) (key & (NUM_SLOTS - 1)) & ~(BUCKET_SIZE - 1);
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	/**
+	 * Look up the analysis of a position.
+	 *
+	 * @return The entry, or null if the position hasn't been analyzed
+	 */
+	@Nullable
+	public synchronized Entry get(@NonNull PositionSnapshot pos) {
+		long key = pos.zobristHash();
+		int verify = pos.verificationKey();
+		int bucket = bucketOffset(key);
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			int slot = bucket + i * SLOT_SIZE;
+			int depth = buffer.get(slot + OFFSET_DEPTH) & 0xff;
+			if (depth > 0 && buffer.getLong(slot + OFFSET_KEY) == key
+					&& buffer.getInt(slot + OFFSET_VERIFY) == verify) {
+				int flags = buffer.get(slot + OFFSET_FLAGS);
+				int pvLength = Math.min(buffer.get(slot + OFFSET_PV_LENGTH), MAX_PV_LENGTH);
+				int[] pv = new int[pvLength];
+				for (int j = 0; j < pvLength; j++) {
+					pv[j] = buffer.getShort(slot + OFFSET_PV + 2 * j) & 0xffff;
+				}
+
+				return new Entry(depth, buffer.getInt(slot + OFFSET_SCORE),
+						(flags & FLAG_MATE) != 0, (flags & FLAG_UPPER_BOUND) != 0,
+						(flags & FLAG_LOWER_BOUND) != 0, pv);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Store the analysis of a position, unless the cache already has a deeper one. The PV is
+	 * truncated to {@link #MAX_PV_LENGTH} moves.
+	 *
+	 * @param pv The PV in the form of {@link org.empyrn.darkknight.gamelogic.Move#toCompact()}
+	 */
+	public synchronized void put(@NonNull PositionSnapshot pos, int depth, int score,
+	                             boolean isMate, boolean upperBound, boolean lowerBound,
+	                             int[] pv, int pvLength) {
+		if (depth <= 0 || pvLength <= 0) {
+			return;
+		}
+		depth = Math.min(depth, 0xff);
+
+		long key = pos.zobristHash();
+		int verify = pos.verificationKey();
+		int bucket = bucketOffset(key);
+
+		// replace the same position if this is at least as deep, otherwise the shallowest entry
+		int target = -1;
+		int targetDepth = Integer.MAX_VALUE;
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			int slot = bucket + i * SLOT_SIZE;
+			int slotDepth = buffer.get(slot + OFFSET_DEPTH) & 0xff;
+			if (slotDepth > 0 && buffer.getLong(slot + OFFSET_KEY) == key
+					&& buffer.getInt(slot + OFFSET_VERIFY) == verify) {
+				if (depth < slotDepth) {
+					return;
+				}
+				target = slot;
+				break;
+			} else if (slotDepth < targetDepth) {
+				target = slot;
+				targetDepth = slotDepth;
+			}
+		}
+
+		int flags = (isMate ? FLAG_MATE : 0) | (upperBound ? FLAG_UPPER_BOUND : 0)
+				| (lowerBound ? FLAG_LOWER_BOUND : 0);
+		pvLength = Math.min(pvLength, MAX_PV_LENGTH);
+
+		// the depth marks the slot as used, so it is written last
+		buffer.put(target + OFFSET_DEPTH, (byte) 0);
+		buffer.putLong(target + OFFSET_KEY, key);
+		buffer.putInt(target + OFFSET_VERIFY, verify);
+		buffer.putInt(target + OFFSET_SCORE, score);
+		buffer.put(target + OFFSET_FLAGS, (byte) flags);
+		buffer.put(target + OFFSET_PV_LENGTH, (byte) pvLength);
+		for (int j = 0; j < pvLength; j++) {
+			buffer.putShort(target + OFFSET_PV + 2 * j, (short) pv[j]);
+		}
+		buffer.put(target + OFFSET_DEPTH, (byte) depth);
+	}
+
+	/**
+	 * Wrap the listener of an analysis of a position. The cached result, if any, is reported at
+	 * once, and the engine's best line is not reported again until the engine gets deeper than
+	 * the cached result. Deeper results are stored as they are found.
+	 */
+	SearchListener track(@NonNull PositionSnapshot pos, @NonNull SearchListener listener) {
+		return new TrackingListener(pos, listener);
+	}
+
+	private final class TrackingListener implements SearchListener {
+		private final PositionSnapshot pos;
+		private final SearchListener listener;
+		/** Depth of the best line shown from the cache. */
+		private final int cachedDepth;
+		/** Depth of the deepest best line stored. */
+		private int storedDepth;
+
+		TrackingListener(PositionSnapshot pos, SearchListener listener) {
+			this.pos = pos;
+			this.listener = listener;
+
+			Entry entry = get(pos);
+			if (entry != null) {
+				listener.notifyPV(pos, 1, entry.depth, entry.score, 0, 0, 0, entry.isMate,
+						entry.upperBound, entry.lowerBound, entry.pv, entry.pv.length);
+				cachedDepth = entry.depth;
+			} else {
+				cachedDepth = 0;
+			}
+			storedDepth = cachedDepth;
+		}
+
+		@Override
+		public void notifyDepth(int depth) {
+			listener.notifyDepth(depth);
+		}
+
+		@Override
+		public void notifyCurrMove(PositionSnapshot pos, int move, int moveNr) {
+			listener.notifyCurrMove(pos, move, moveNr);
+		}
+
+		@Override
+		public void notifyPV(PositionSnapshot pos, int multiPV, int depth, int score, int time,
+		                     int nodes, int nps, boolean isMate, boolean upperBound,
+		                     boolean lowerBound, int[] pv, int pvLength) {
+			if (multiPV > 1) {
+				listener.notifyPV(pos, multiPV, depth, score, time, nodes, nps, isMate,
+						upperBound, lowerBound, pv, pvLength);
+				return;
+			}
+
+			boolean exact = !upperBound && !lowerBound;
+			if (depth > storedDepth || (depth == storedDepth && exact)) {
+				put(this.pos, depth, score, isMate, upperBound, lowerBound, pv, pvLength);
+				storedDepth = depth;
+			}
+
+			if (depth >= cachedDepth) {
+				listener.notifyPV(pos, multiPV, depth, score, time, nodes, nps, isMate,
+						upperBound, lowerBound, pv, pvLength);
+			} else {
+				listener.notifyStats(nodes, nps, time);
+			}
+		}
+
+		@Override
+		public void notifyStats(int nodes, int nps, int time) {
+			listener.notifyStats(nodes, nps, time);
+		}
+
+		@Override
+		public void notifyBookInfo(String bookInfo, List<Move> moveList) {
+			listener.notifyBookInfo(bookInfo, moveList);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package org.empyrn.darkknight.engine;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Starts the game's engine in the background when the app starts, so the first search doesn't
+ * have to wait for it. Starting the engine means starting its process and waiting for "uciok",
+ * loading the opening book, and setting the engine up and waiting for "readyok"; together that
+ * takes long enough to be felt on the first computer move.
+ * <p/>
+ * {@link EnginePlayer#getInstance()} waits for a boot in progress instead of starting a second
+ * engine, so callers get the booted engine however early they ask.
+ */
+public final class EngineBootstrapper {
+	private static EngineBootstrapper instance;
+
+	/** Completed with the engine once booted. Guarded by this. */
+	private FutureTask<EnginePlayer> ready;
+
+	/**
+	 * Time spent in each phase of an engine's startup.
+	 */
+	public static final class Timings {
+		/** Time to start the engine and get "uciok", or to set up the in-process engine. */
+		public final long processMillis;
+		/** Time to load the opening book, 0 if it was already loaded. */
+		public final long bookMillis;
+		/** Time to send the initial options and get "readyok". */
+		public final long readyMillis;
+
+		Timings(long processMillis, long bookMillis, long readyMillis) {
+			this.processMillis = processMillis;
+			this.bookMillis = bookMillis;
+			this.readyMillis = readyMillis;
+		}
+
+		public long getTotalMillis() {
+			return processMillis + bookMillis + readyMillis;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%d ms (process %d ms, book %d ms, ready %d ms)",
+					getTotalMillis(), processMillis, bookMillis, readyMillis);
+		}
+	}
+
+	private EngineBootstrapper() {
+	}
+
+	@NonNull
+	public static synchronized EngineBootstrapper getInstance() {
+		if (instance == null) {
+			instance = new EngineBootstrapper();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Start booting the engine on a background thread, unless it is booting or running already.
+	 * The engine directory and whether the engine runs in-process must be set first.
+	 *
+	 * @return A future that is completed with the engine once it is ready, or with the error that
+	 * kept it from starting
+	 */
+	@NonNull
+	public synchronized Future<EnginePlayer> boot() {
+		if (ready != null && (!ready.isDone() || EnginePlayer.hasInstance())) {
+			return ready;
+		}
+
+		ready = new FutureTask<>(new Callable<EnginePlayer>() {
+			@Override
+			public EnginePlayer call() {
+				try {
+					EnginePlayer player = EnginePlayer.createInstanceIfNeeded();
+					Log.i(EngineBootstrapper.class.getSimpleName(), "Engine ready in "
+							+ player.getStartupTimings());
+					return player;
+				} catch (RuntimeException e) {
+					Log.e(EngineBootstrapper.class.getSimpleName(), "Could not boot engine", e);
+					throw e;
+				}
+			}
+		});
+
+		Thread thread = new Thread(ready, "EngineBootstrapper");
+		thread.setDaemon(true);
+		thread.start();
+		return ready;
+	}
+
+	/**
+	 * @return The future of the last boot, or null if the engine was never booted
+	 */
+	@Nullable
+	public synchronized Future<EnginePlayer> getReadyFuture() {
+		return ready;
+	}
+
+	/**
+	 * Wait for the boot in progress, if any, to finish. A boot that failed is not reported; the
+	 * caller starting the engine itself gets the error again.
+	 */
+	void awaitBoot() {
+		Future<EnginePlayer> future = getReadyFuture();
+		if (future == null || future.isDone()) {
+			return;
+		}
+
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			// the caller starts the engine itself, which waits for the boot anyway
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// reported by the boot thread
+		}
+	}
+}
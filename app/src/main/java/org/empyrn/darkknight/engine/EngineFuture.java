@@ -0,0 +1,82 @@
+package org.empyrn.darkknight.engine;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending answer to a request sent to the engine, completed by the thread reading the
+ * engine's output. A request can't be taken back once sent, so the future can't be cancelled.
+ */
+public final class EngineFuture<V> implements Future<V> {
+	private final CountDownLatch done = new CountDownLatch(1);
+	private V value;
+	private Throwable failure;
+
+	/**
+	 * Complete the future with a value. Only the first completion has any effect.
+	 */
+	synchronized boolean set(V value) {
+		if (done.getCount() == 0) {
+			return false;
+		}
+
+		this.value = value;
+		done.countDown();
+		return true;
+	}
+
+	/**
+	 * Complete the future with an error, for instance because the engine has exited.
+	 */
+	synchronized boolean fail(Throwable failure) {
+		if (done.getCount() == 0) {
+			return false;
+		}
+
+		this.failure = failure;
+		done.countDown();
+		return true;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+
+		return getResult();
+	}
+
+	private synchronized V getResult() throws ExecutionException {
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+
+		return value;
+	}
+}
@@ -1,7 +1,7 @@
 package org.empyrn.darkknight.engine;
 
-import android.annotation.SuppressLint;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
@@ -9,23 +9,108 @@ import org.empyrn.darkknight.gamelogic.Move;
 import org.empyrn.darkknight.gamelogic.MoveGenerator;
 import org.empyrn.darkknight.gamelogic.Pair;
 import org.empyrn.darkknight.gamelogic.Position;
+import org.empyrn.darkknight.gamelogic.PositionSnapshot;
 import org.empyrn.darkknight.gamelogic.SearchListener;
 import org.empyrn.darkknight.gamelogic.TextIO;
 import org.empyrn.darkknight.gamelogic.UndoInfo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * A computer algorithm player.
  */
 public class EnginePlayer {
-	private static NativePipedProcess s_npp = null;
 	private static volatile EnginePlayer playerInstance;
+	private static volatile boolean useInProcessEngine = false;
+
+	// searches of all players, so work that needs the CPU to itself can tell if it had it
+	private static final AtomicInteger searchesRunning = new AtomicInteger();
+	private static final AtomicLong searchesStarted = new AtomicLong();
+
+	/**
+	 * Hash table size used until the device's resources are known.
+	 */
+	static final int DEFAULT_HASH_MB = 16;
+
+	/**
+	 * Connection to this player's own engine process, or null if the in-process engine is used.
+	 */
 	private final NativePipedProcess npp;
-	private final AtomicBoolean shouldStopSearch = new AtomicBoolean(false);
+
+	/**
+	 * Thread decoding the output of {@link #npp}, or null if the in-process engine is used.
+	 */
+	private final EngineReader reader;
+
+	/**
+	 * The in-process engine, or null if the engine runs as a separate process.
+	 */
+	private final InProcessEngine inProcessEngine;
+	private final InProcessListener inProcessListener;
+	/**
+	 * Maximum time to wait for the engine to answer "stop" with "bestmove" before the engine
+	 * process is killed instead.
+	 */
+	private static final int STOP_TIMEOUT_MILLIS = 1000;
+	/** Time after which a "stop" the engine process hasn't answered is sent again. */
+	private static final int STOP_RESEND_MILLIS = 50;
+
+	/**
+	 * Maximum time to wait for a new engine process to answer "uci".
+	 */
+	private static final int START_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * Maximum time to wait for "readyok". Allocating a large hash table can take a while.
+	 */
+	private static final int READY_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * Stops searches that reach their time limit. Shared by all players.
+	 */
+	private static ScheduledExecutorService timeLimitExecutor;
+
+	/**
+	 * Guards {@link #searching}, {@link #stopSent}, {@link #pondering}, {@link #searchResult},
+	 * {@link #searchId} and the time limits, and orders "go", "ponderhit" and "stop" commands.
+	 */
+	private final Object searchLock = new Object();
+	private boolean searching = false;
+	private boolean stopSent = false;
+	/** A stop was asked for before the search it was meant for reached the engine. */
+	private boolean stopPending = false;
+	/**
+	 * True while the current search is on the opponent's time, waiting for "ponderhit".
+	 */
+	private boolean pondering = false;
+	/**
+	 * Completed with the best move of the engine process's current search.
+	 */
+	private EngineFuture<String> searchResult;
+	/**
+	 * Identifies the current search, so a late time limit can't stop the next one.
+	 */
+	private int searchId = 0;
+	private ScheduledFuture<?> timeLimit;
+	/**
+	 * Time limit of the current ponder search, which starts to run on "ponderhit".
+	 */
+	private int ponderTimeLimitMillis = 0;
+	private final TimeAllocator timeAllocator = new TimeAllocator();
 	private final String mEngineName;
 	private Book book;
 	private boolean newGame = false;
@@ -38,109 +123,296 @@ public class EnginePlayer {
 	private int statTime = 0;
 	private int statNodes = 0;
 	private int statNps = 0;
-	private ArrayList<String> statPV = new ArrayList<>();
-	private String statCurrMove = "";
+	/** The PV being reported, in the form of {@link Move#toCompact()}. */
+	private final int[] statPV = new int[SearchInfo.MAX_PV_LENGTH];
+	private int statPVLength = 0;
+	/** Rank of the PV being reported, 1 for the best one. */
+	private int statMultiPV = 1;
+	private int statCurrMove = 0;
 	private int statCurrMoveNr = 0;
+	/**
+	 * The reply the engine expects to its last best move, or null if it has none.
+	 */
+	private Move ponderMove;
+	private boolean ponderEnabled = false;
 	private boolean depthModified = false;
 	private boolean currMoveModified = false;
 	private boolean pvModified = false;
 	private boolean statsModified = false;
+	private int hashSizeMB = 0;
+	private int threads = 0;
+	/** Number of variations the engine is set to search for. */
+	private int multiPV = 1;
+	private final EngineBootstrapper.Timings startupTimings;
+	/** True if the engine process runs at background priority. */
+	private final boolean background;
+	/** The engine's "Randomness" setting; analysis is always done without. */
+	private int randomness = 0;
 
 
-	private EnginePlayer() {
-		if (s_npp == null) {
-			s_npp = new NativePipedProcess();
-			s_npp.initialize();
-		}
-
-		npp = s_npp;
+	/**
+	 * @param inProcess  True to use the engine linked into the app process, false to start a new
+	 *                   engine process for this player
+	 * @param background True to start the engine process at background priority
+	 */
+	private EnginePlayer(boolean inProcess, boolean background) {
+		this.background = background;
+		long t0 = SystemClock.uptimeMillis();
 		book = new Book(false);
+		long bookMillis = SystemClock.uptimeMillis() - t0;
+
+		if (inProcess) {
+			t0 = SystemClock.uptimeMillis();
+			npp = null;
+			reader = null;
+			inProcessEngine = InProcessEngine.getInstance();
+			inProcessListener = new InProcessListener();
+			mEngineName = inProcessEngine.getEngineName();
+			Log.i(getClass().getSimpleName(), "Created new in-process engine player instance: " + mEngineName);
+			long processMillis = SystemClock.uptimeMillis() - t0;
+
+			t0 = SystemClock.uptimeMillis();
+			setInitialOptions();
+			startupTimings = new EngineBootstrapper.Timings(processMillis, bookMillis,
+					SystemClock.uptimeMillis() - t0);
+			return;
+		}
 
+		t0 = SystemClock.uptimeMillis();
+		npp = new NativePipedProcess(background ? NativePipedProcess.NICE_BACKGROUND
+				: NativePipedProcess.NICE_DEFAULT);
+		npp.initialize();
+		reader = EngineReader.start(npp);
+		inProcessEngine = null;
+		inProcessListener = null;
 
+		EngineFuture<String> uciOk = reader.expectUciOk();
 		npp.writeLineToProcess("uci");
 
-		int timeout = 1000;
-		String engineName = null;
-		while (true) {
-			String s = npp.readLineFromProcess(timeout);
-			String[] tokens = tokenize(s);
-			if (tokens[0].equals("uciok")) {
-				break;
-			} else if (tokens[0].equals("id")) {
-				if (tokens[1].equals("name")) {
-					engineName = "";
-					for (int i = 2; i < tokens.length; i++) {
-						if (engineName.length() > 0) {
-							engineName += " ";
-						}
-
-						engineName += tokens[i];
-					}
-				}
-			}
+		String engineName;
+		try {
+			engineName = uciOk.get(START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			engineName = null;
+		} catch (ExecutionException | TimeoutException e) {
+			engineName = null;
 		}
 
 		if (engineName == null) {
+			npp.shutDown();
 			throw new IllegalStateException("Engine could not be initialized");
 		}
 
 		mEngineName = engineName;
 		Log.i(getClass().getSimpleName(), "Created new engine player instance: " + mEngineName);
+		long processMillis = SystemClock.uptimeMillis() - t0;
+
+		t0 = SystemClock.uptimeMillis();
+		setInitialOptions();
+		startupTimings = new EngineBootstrapper.Timings(processMillis, bookMillis,
+				SystemClock.uptimeMillis() - t0);
+	}
 
-		npp.writeLineToProcess("setoption name Hash value 16");
-		npp.writeLineToProcess("setoption name Ponder value false");
-		npp.writeLineToProcess("setoption name Aggressiveness value 200");
-		npp.writeLineToProcess("setoption name Space value 200");
-		npp.writeLineToProcess("ucinewgame");
+	private void setInitialOptions() {
+		sendCommand("setoption name Ponder value false");
+		sendCommand("setoption name Aggressiveness value 200");
+		sendCommand("setoption name Space value 200");
+		configure(EngineResources.getHashMB(), EngineResources.getThreads());
+		sendCommand("ucinewgame");
 		syncReady();
 	}
 
-	public static synchronized void prepareInstance() {
-		if (playerInstance == null) {
-			playerInstance = new EnginePlayer();
-		}
+	/**
+	 * Choose whether the engine is linked into the app process and called through JNI, instead
+	 * of running as a separate process spoken to over pipes. Takes effect the next time a player
+	 * instance is created.
+	 */
+	public static void setUseInProcessEngine(boolean inProcess) {
+		useInProcessEngine = inProcess;
 	}
 
-	@NonNull
-	public static synchronized EnginePlayer getInstance() {
-		prepareInstance();
-		return playerInstance;
+	/**
+	 * Start a new engine process for a session with its own hash size and thread count. Used by
+	 * {@link EnginePool}; the session is independent of the shared instance.
+	 *
+	 * @param background True to run the engine at background priority, so it only gets the CPU
+	 *                   time no other search wants
+	 */
+	static EnginePlayer createSession(int hashMB, int threads, boolean background) {
+		EnginePlayer player = new EnginePlayer(false, background);
+		player.configure(hashMB, threads);
+		return player;
 	}
 
 	/**
-	 * Convert a string to tokens by splitting at whitespace characters.
+	 * Start the shared instance, unless it is running. If the {@link EngineBootstrapper} is
+	 * booting it, wait for the boot instead.
 	 */
-	private static String[] tokenize(String cmdLine) {
-		cmdLine = cmdLine.trim();
-		return cmdLine.split("\\s+");
+	public static void prepareInstance() {
+		getInstance();
 	}
 
 	/**
-	 * Stop the engine process and clear the player from memory.
+	 * Get the shared instance, starting it if needed. Waits for the engine to boot, so it must
+	 * not be called on the main thread.
 	 */
-	public static synchronized void shutdownEngine() {
-		if (s_npp == null) {
-			return;
-		}
+	@NonNull
+	public static EnginePlayer getInstance() {
+		// not under the lock, which the boot holds while starting the engine
+		EngineBootstrapper.getInstance().awaitBoot();
+		return createInstanceIfNeeded();
+	}
 
-		s_npp.shutDown();
-		while (s_npp.isProcessAlive()) {
-			try {
-				Thread.sleep(10);
-			} catch (InterruptedException e) {
-				throw new RuntimeException(e);
-			}
+	@NonNull
+	static synchronized EnginePlayer createInstanceIfNeeded() {
+		if (playerInstance == null) {
+			playerInstance = new EnginePlayer(useInProcessEngine, false);
 		}
 
-		s_npp = null;
+		return playerInstance;
+	}
 
-		Log.i(EnginePlayer.class.getSimpleName(), "Shut down engine process");
+	static boolean hasInstance() {
+		return playerInstance != null;
+	}
 
+	/**
+	 * Stop the engine process of the shared instance and clear the player from memory.
+	 */
+	public static synchronized void shutdownEngine() {
 		if (playerInstance != null) {
+			shutdownPlayer(playerInstance);
+		}
+	}
+
+	private static synchronized void shutdownPlayer(EnginePlayer player) {
+		if (player == playerInstance) {
 			playerInstance = null;
 
 			Log.i(EnginePlayer.class.getSimpleName(), "Removed player instance");
 		}
+
+		player.shutdown();
+	}
+
+	/**
+	 * Shut down this player's engine. The in-process engine can't be killed, so its search is
+	 * only stopped.
+	 */
+	final void shutdown() {
+		if (inProcessEngine != null) {
+			inProcessEngine.stop();
+		} else {
+			npp.shutDown();
+
+			Log.i(getClass().getSimpleName(), "Shut down engine process " + npp);
+		}
+	}
+
+	/**
+	 * Check whether this player's engine can still be used.
+	 */
+	final boolean isAlive() {
+		return inProcessEngine != null || npp.isProcessAlive();
+	}
+
+	/**
+	 * Set the hash table size and the number of search threads, when they differ from the current
+	 * settings. The way the search is split between threads is adapted to the thread count. Must
+	 * not be called while searching.
+	 *
+	 * @param threads Number of search threads, or 0 to keep the engine's default
+	 */
+	final void configure(int hashMB, int threads) {
+		boolean changed = false;
+		if (hashMB != hashSizeMB) {
+			sendCommand("setoption name Hash value " + hashMB);
+			hashSizeMB = hashMB;
+			changed = true;
+		}
+
+		if (threads > 0 && threads != this.threads) {
+			sendCommand("setoption name Threads value " + threads);
+			sendCommand("setoption name Minimum Split Depth value "
+					+ EngineResources.getMinSplitDepth(threads));
+			sendCommand("setoption name Maximum Number of Threads per Split Point value "
+					+ EngineResources.getMaxThreadsPerSplitPoint(threads));
+			this.threads = threads;
+			changed = true;
+		}
+
+		if (changed) {
+			syncReady();
+		}
+	}
+
+	final int getHashSizeMB() {
+		return hashSizeMB;
+	}
+
+	final boolean isBackground() {
+		return background;
+	}
+
+	/**
+	 * @return The time each phase of starting this player's engine took
+	 */
+	@NonNull
+	public final EngineBootstrapper.Timings getStartupTimings() {
+		return startupTimings;
+	}
+
+	/**
+	 * @return The number of search threads, or 0 if the engine's default is used
+	 */
+	final int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Tell the engine whether it will be asked to ponder, so it can plan its time accordingly.
+	 * Must not be called while searching.
+	 */
+	public final void setPondering(boolean enabled) {
+		if (enabled != ponderEnabled) {
+			sendCommand("setoption name Ponder value " + enabled);
+			ponderEnabled = enabled;
+		}
+	}
+
+	/**
+	 * Set the engine's "Randomness" option, when it differs from the current setting. The
+	 * engine only applies it to a new game, so one is started.
+	 * Must not be called while searching.
+	 */
+	private void setRandomness(int value) {
+		if (value != randomness) {
+			sendCommand("setoption name Randomness value " + value);
+			randomness = value;
+			newGame = true;
+		}
+	}
+
+	/**
+	 * Set the number of variations to search for, when it differs from the current setting.
+	 * Must not be called while searching.
+	 */
+	private void setMultiPV(int numPV) {
+		if (numPV != multiPV) {
+			sendCommand("setoption name MultiPV value " + numPV);
+			multiPV = numPV;
+		}
+	}
+
+	/**
+	 * Get the reply the engine expects to the move of its last search, taken from the PV the move
+	 * came with. Must be called from the thread that did the search.
+	 *
+	 * @return The expected reply, or null if the search didn't predict one
+	 */
+	public final Move getPonderMove() {
+		return ponderMove;
 	}
 
 	private static boolean canClaimDraw50(Position pos) {
@@ -227,14 +499,36 @@ public class EnginePlayer {
 		book.setBookFileName(bookFileName);
 	}
 
+	/**
+	 * Send a command other than "go" or "stop" to the engine.
+	 */
+	private void sendCommand(String command) {
+		if (inProcessEngine != null) {
+			inProcessEngine.sendCommand(command);
+		} else {
+			npp.writeLineToProcess(command);
+		}
+	}
+
 	private void syncReady() {
+		if (inProcessEngine != null) {
+			// commands to the in-process engine have completed when they return
+			return;
+		}
+
+		EngineFuture<Void> readyOk = reader.expectReadyOk();
+		long t0 = SystemClock.uptimeMillis();
 		npp.writeLineToProcess("isready");
-		while (true) {
-			// wait for the NPP to send the all clear to start the game
-			String s = npp.readLineFromProcess(100);
-			if (s != null && s.equals("readyok")) {
-				break;
-			}
+		try {
+			readyOk.get(READY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			timeAllocator.addRoundTrip(SystemClock.uptimeMillis() - t0);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// the process is gone; the next search finds out and gives up
+		} catch (TimeoutException e) {
+			Log.w(getClass().getSimpleName(), "Engine did not answer isready within "
+					+ READY_TIMEOUT_MILLIS + " ms");
 		}
 	}
 
@@ -254,7 +548,7 @@ public class EnginePlayer {
 
 		if (newGame) {
 			newGame = false;
-			npp.writeLineToProcess("ucinewgame");
+			sendCommand("ucinewgame");
 			syncReady();
 		}
 	}
@@ -269,13 +563,48 @@ public class EnginePlayer {
 	 * @param mList   List of moves to go from the earlier position to the current position.
 	 *                This list makes it possible for the computer to correctly handle draw
 	 *                by repetition/50 moves.
+	 * @param wTime   Time left on white's clock, or 0 if the game is not timed
+	 * @param bTime   Time left on black's clock, or 0 if the game is not timed
+	 * @param moveTime Fixed time to spend on the move, or 0 to go by the clocks
+	 * @param level   Strength to play at, which also caps the time spent on the move
 	 */
-	@SuppressLint("DefaultLocale")
-	public final String doSearch(Position prevPos, ArrayList<Move> mList, Position currPos,
+	public final String doSearch(PositionSnapshot prevPos, ArrayList<Move> mList, PositionSnapshot currSnapshot,
 	                             boolean drawOffer,
-	                             int wTime, int bTime, int inc, int movesToGo, int maxDepth,
+	                             int wTime, int bTime, int inc, int movesToGo, int moveTime,
+	                             @NonNull StrengthLevel level,
 	                             @NonNull final SearchListener searchListener) throws InterruptedException {
+		return search(prevPos, mList, currSnapshot, drawOffer, wTime, bTime, inc, movesToGo,
+				moveTime, level, false, searchListener);
+	}
+
+	/**
+	 * Search on the opponent's time, assuming the opponent plays the move the engine expects. The
+	 * search runs until {@link #ponderHit()} turns it into a normal search with the given limits,
+	 * or until it is stopped when the opponent plays something else.
+	 *
+	 * @param mList        Moves to go from the earlier position to the current position, ending
+	 *                     with the expected move
+	 * @param currSnapshot The position after the expected move
+	 * @see #doSearch
+	 */
+	public final String ponderSearch(PositionSnapshot prevPos, ArrayList<Move> mList,
+	                                 PositionSnapshot currSnapshot,
+	                                 int wTime, int bTime, int inc, int movesToGo, int moveTime,
+	                                 @NonNull StrengthLevel level,
+	                                 @NonNull final SearchListener searchListener) throws InterruptedException {
+		return search(prevPos, mList, currSnapshot, false, wTime, bTime, inc, movesToGo, moveTime,
+				level, true, searchListener);
+	}
+
+	private String search(PositionSnapshot prevPos, ArrayList<Move> mList, PositionSnapshot currSnapshot,
+	                      boolean drawOffer,
+	                      int wTime, int bTime, int inc, int movesToGo, int moveTime,
+	                      StrengthLevel level, boolean ponder,
+	                      @NonNull final SearchListener searchListener) throws InterruptedException {
 		prepareIfNeeded();
+		ponderMove = null;
+		statPVLength = 0;
+		statMultiPV = 1;
 		searchListener.notifyBookInfo("", null);
 
 		// Set up for draw detection
@@ -283,14 +612,19 @@ public class EnginePlayer {
 		int posHashListSize = 0;
 
 		Position p = new Position(prevPos);
+		final String prevFEN = TextIO.toFEN(p);
 		UndoInfo ui = new UndoInfo();
 		for (int i = 0; i < mList.size(); i++) {
 			posHashList[posHashListSize++] = p.zobristHash();
 			p.makeMove(mList.get(i), ui);
 		}
 
-		// if there's a book move, play it
-		Move bookMove = book.getBookMove(currPos);
+		// the engine thread's own working copy of the current position
+		Position currPos = new Position(currSnapshot);
+
+		// if there's a book move, play it; a ponder search has to search anyway, since the move
+		// is only played after "ponderhit"
+		Move bookMove = ponder ? null : book.getBookMove(currPos);
 		if (bookMove != null && canClaimDraw(currPos, posHashList, posHashListSize, bookMove).equals("")) {
 			return TextIO.moveToString(currPos, bookMove, false);
 		}
@@ -301,7 +635,7 @@ public class EnginePlayer {
 			return ""; // User set up a position where computer has no valid moves.
 		}
 
-		if (moves.size() == 1) {
+		if (moves.size() == 1 && !ponder) {
 			Move bestMove = moves.iterator().next();
 			if (canClaimDraw(currPos, posHashList, posHashListSize, bestMove).equals("")) {
 				return TextIO.moveToUCIString(bestMove);
@@ -310,7 +644,7 @@ public class EnginePlayer {
 
 		StringBuilder posStr = new StringBuilder();
 		posStr.append("position fen ");
-		posStr.append(TextIO.toFEN(prevPos));
+		posStr.append(prevFEN);
 		int nMoves = mList.size();
 		if (nMoves > 0) {
 			posStr.append(" moves");
@@ -320,28 +654,43 @@ public class EnginePlayer {
 			}
 		}
 
+		setRandomness(level.getRandomness());
 		maybeNewGame();
-		npp.writeLineToProcess(posStr.toString());
-//		if (wTime < 1) wTime = 1;
-//		if (bTime < 1) bTime = 1;
-		String goStr = "go";
+		// searching for more than one variation only slows down finding the move to play
+		setMultiPV(1);
+		sendCommand(posStr.toString());
 
-		if (maxDepth > 1) {
-			goStr += String.format(" depth %d", maxDepth);
+		// refresh the round-trip estimate the time margin is based on
+		syncReady();
+
+		// the level's cap holds whatever the clocks allow; without clocks it is the move time.
+		// With clocks the level is only a time cap: a node limit would turn off the engine's time
+		// management, so it would search to the hard limit on every move.
+		boolean whiteMove = currPos.whiteMove;
+		boolean clocks = moveTime <= 0 && (whiteMove ? wTime : bTime) > 0;
+		int maxMoveTime = level.getMaxMoveTimeMillis();
+		if (!clocks) {
+			moveTime = moveTime > 0 ? Math.min(moveTime, maxMoveTime) : maxMoveTime;
+		} else if (timeAllocator.targetMillis(whiteMove, wTime, bTime, inc, movesToGo)
+				> maxMoveTime) {
+			// the clocks allow more than the level; think for the level's time instead
+			moveTime = maxMoveTime;
 		}
 
-//		if (inc > 0) {
-//			goStr += String.format(" winc %d binc %d", inc, inc);
-//		}
-//
-//		if (movesToGo > 0) {
-//			goStr += String.format(" movestogo %d", movesToGo);
-//		}
+		String goStr = timeAllocator.goCommand(whiteMove, moveTime, wTime, bTime, inc, movesToGo,
+				clocks ? 0 : level.getNodes());
+		int hardLimit = Math.min(maxMoveTime, timeAllocator.hardLimitMillis(whiteMove, moveTime,
+				wTime, bTime, inc, movesToGo));
+		if (ponder) {
+			goStr = "go ponder" + goStr.substring(2);
+		}
 
-		npp.writeLineToProcess(goStr);
+		String bestMove = runSearch(goStr, hardLimit, ponder, currSnapshot, searchListener);
 
-		String bestMove = runEngineMonitorLoop(currPos, searchListener);
-		shouldStopSearch.set(false);
+		Move best = TextIO.UCIstringToMove(bestMove);
+		if (best != null && statMultiPV == 1 && statPVLength >= 2 && statPV[0] == best.toCompact()) {
+			ponderMove = Move.fromCompact(statPV[1]);
+		}
 
 		// claim draw if appropriate
 		if (statScore <= 0) {
@@ -359,72 +708,341 @@ public class EnginePlayer {
 	}
 
 	/**
-	 * Wait for engine to respond with "bestmove". While waiting, monitor and report search info.
+	 * Start a search with the given "go" command, and report search info until the engine has
+	 * found its best move.
+	 *
+	 * @param timeLimitMillis Time after which the search is stopped, or 0 for no limit
+	 * @param ponder          True if the search is on the opponent's time, in which case the time
+	 *                        limit only starts to run on "ponderhit"
+	 * @return The best move in UCI format
 	 */
-	private String runEngineMonitorLoop(Position pos, @NonNull SearchListener searchListener) throws InterruptedException {
+	private String runSearch(String goCmd, int timeLimitMillis, boolean ponder, PositionSnapshot pos,
+	                         @NonNull SearchListener searchListener) throws InterruptedException {
 		if (Looper.myLooper() == Looper.getMainLooper()) {
 			throw new IllegalStateException("Cannot monitor engine on main thread");
-		} else if (shouldStopSearch.get()) {
-			throw new IllegalStateException("stopSearch cannot be true when starting to monitor the engine");
 		}
 
+		searchesStarted.incrementAndGet();
+		searchesRunning.incrementAndGet();
+		try {
+			if (inProcessEngine != null) {
+				return runInProcessSearch(goCmd, timeLimitMillis, ponder, pos, searchListener);
+			}
+
+			return runEngineMonitorLoop(startSearch(goCmd, timeLimitMillis, ponder), pos,
+					searchListener);
+		} finally {
+			searchesRunning.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return True if any player, the shared instance or a session, is searching
+	 */
+	static boolean isAnySearchRunning() {
+		return searchesRunning.get() > 0;
+	}
+
+	/**
+	 * @return The number of searches started by all players since the app started
+	 */
+	static long getSearchesStarted() {
+		return searchesStarted.get();
+	}
+
+	/**
+	 * Run a search on the in-process engine. The search runs on this thread, and reports to
+	 * {@link #inProcessListener} directly instead of through UCI "info" lines.
+	 */
+	private String runInProcessSearch(String goCmd, int timeLimitMillis, boolean ponder,
+	                                  PositionSnapshot pos, @NonNull SearchListener searchListener) {
+		Log.i(getClass().getSimpleName(), "Searching in-process on: " + Thread.currentThread().getName());
+
+		clearInfo();
+
+		synchronized (searchLock) {
+			// cleared under the lock, so a stop sent after this point is never lost
+			inProcessEngine.clearStop();
+			searching = true;
+			stopSent = false;
+			startTimeLimit(timeLimitMillis, ponder);
+			sendPendingStop();
+		}
+
+		inProcessListener.begin(pos, searchListener);
+		try {
+			inProcessEngine.search(goCmd, inProcessListener);
+			return inProcessListener.bestMove;
+		} finally {
+			inProcessListener.end();
+			synchronized (searchLock) {
+				searching = false;
+				stopSent = false;
+				pondering = false;
+				cancelTimeLimit();
+				searchLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait for engine to respond with "bestmove". While waiting, report the search info decoded
+	 * by the reader thread.
+	 */
+	private String runEngineMonitorLoop(ArrayBlockingQueue<SearchInfo> events,
+	                                    PositionSnapshot pos, @NonNull SearchListener searchListener) throws InterruptedException {
+
 		Log.i(getClass().getSimpleName(), "Monitoring engine on: " + Thread.currentThread().getName());
 
 		clearInfo();
 
-//		boolean stopSent = false;
+		EngineFuture<String> result;
+		synchronized (searchLock) {
+			result = searchResult;
+		}
 
-		while (true) {
-			if (!npp.isProcessAlive()) {
-				// break out of the loop if the NPP has been shut down
-				throw new InterruptedException("UCI engine process has been shut down");
+		try {
+			while (true) {
+				SearchInfo event = events.take();
+				int type = event.type;
+				String bestMove = event.bestMove;
+				if (type == SearchInfo.INFO) {
+					applyInfo(event);
+				}
+				event.recycle();
+
+				if (type == SearchInfo.INFO) {
+					updateThinkingProgress(pos, searchListener);
+				} else if (type == SearchInfo.BEST_MOVE) {
+					return bestMove;
+				} else if (!npp.isProcessAlive()) {
+					// break out of the loop if the NPP has been shut down
+					throw new InterruptedException("UCI engine process has been shut down");
+				} else {
+					Log.e(getClass().getSimpleName(), "Could not read from engine");
+					return "";
+				}
 			}
+		} finally {
+			synchronized (searchLock) {
+				// a stopped search may still be draining its events when the next one starts
+				if (searchResult == result) {
+					searching = false;
+					stopSent = false;
+					pondering = false;
+					searchResult = null;
+					cancelTimeLimit();
+				}
+				searchLock.notifyAll();
+			}
+		}
+	}
 
-//			if (shouldStopSearch.get() && !stopSent) {
-//				Log.i(getClass().getSimpleName(), this + " stopping search for " + npp.toString());
-//				// if the engine should stop, stop it
-//				npp.writeLineToProcess("stop");
-//				stopSent = true;
-//			}
+	/**
+	 * Send a "go" command and mark the engine as searching. This is done under the search lock so
+	 * that a concurrent "stop" can't reach the engine before the "go" it is meant to stop.
+	 *
+	 * @return The queue receiving the search's info, and finally its best move
+	 */
+	private ArrayBlockingQueue<SearchInfo> startSearch(String goCmd, int timeLimitMillis,
+	                                                   boolean ponder) {
+		synchronized (searchLock) {
+			searchResult = new EngineFuture<>();
+			ArrayBlockingQueue<SearchInfo> events = reader.expectSearch(searchResult);
+			npp.writeLineToProcess(goCmd);
+			searching = true;
+			stopSent = false;
+			startTimeLimit(timeLimitMillis, ponder);
+			sendPendingStop();
+			return events;
+		}
+	}
 
-			String s = npp.readLineFromProcess(2000);
+	/**
+	 * Start a new search id, and if the search is limited, schedule the stop at the limit. The
+	 * limit of a ponder search is kept until "ponderhit". Called with the search lock held.
+	 */
+	private void startTimeLimit(int timeLimitMillis, boolean ponder) {
+		searchId++;
+		pondering = ponder;
+		if (ponder) {
+			ponderTimeLimitMillis = timeLimitMillis;
+		} else {
+			scheduleTimeLimit(timeLimitMillis);
+		}
+	}
 
-			if (s == null || s.length() == 0) {
-				Log.e(getClass().getSimpleName(), "Received empty input from engine");
-				return "";
-			} else {
-				Log.d(getClass().getSimpleName(), "Received data from engine: " + s);
+	/**
+	 * Schedule the stop of the current search. Called with the search lock held.
+	 */
+	private void scheduleTimeLimit(int timeLimitMillis) {
+		final int id = searchId;
+		if (timeLimitMillis > 0) {
+			timeLimit = getTimeLimitExecutor().schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (searchLock) {
+						if (searching && !stopSent && searchId == id) {
+							Log.i(EnginePlayer.this.getClass().getSimpleName(),
+									"Search reached its time limit");
+							sendStop();
+						}
+					}
+				}
+			}, timeLimitMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Called with the search lock held.
+	 */
+	private void cancelTimeLimit() {
+		if (timeLimit != null) {
+			timeLimit.cancel(false);
+			timeLimit = null;
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getTimeLimitExecutor() {
+		if (timeLimitExecutor == null) {
+			timeLimitExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(@NonNull Runnable r) {
+					Thread thread = new Thread(r, "EngineTimeLimit");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return timeLimitExecutor;
+	}
+
+	/**
+	 * Tell the engine to stop the current search. Called with the search lock held.
+	 */
+	private void sendStop() {
+		if (inProcessEngine != null) {
+			inProcessEngine.stop();
+		} else {
+			npp.writeLineToProcess("stop");
+			scheduleStopResend();
+		}
+		stopSent = true;
+	}
+
+	/**
+	 * The engine process only looks for input between nodes when there is input it hasn't read
+	 * yet, so it misses a "stop" that it read together with the "go" before it. Send the stop
+	 * again until the search is over. Called with the search lock held.
+	 */
+	private void scheduleStopResend() {
+		final int id = searchId;
+		getTimeLimitExecutor().schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (searchLock) {
+					if (searching && stopSent && searchId == id) {
+						npp.writeLineToProcess("stop");
+						scheduleStopResend();
+					}
+				}
 			}
+		}, STOP_RESEND_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Ask the engine to stop searching without waiting for it. The search returns its best move
+	 * to its caller as usual, as soon as the engine has stopped. If no search is running, the
+	 * next search is stopped as soon as it starts, unless {@link #clearStopRequest()} is called
+	 * first.
+	 */
+	public final void requestStop() {
+		if (!isPrepared()) {
+			return;
+		}
 
-			String[] tokens = tokenize(s);
-			if (tokens[0].equals("info")) {
-				parseInfoCmd(tokens);
-				updateThinkingProgress(pos, searchListener);
-			} else if (tokens[0].equals("bestmove")) {
-				return tokens[1];
+		synchronized (searchLock) {
+			if (!searching) {
+				stopPending = true;
+			} else if (!stopSent) {
+				sendStop();
 			}
 		}
 	}
 
+	/**
+	 * Forget a stop asked for with {@link #requestStop()} while no search was running.
+	 */
+	public final void clearStopRequest() {
+		synchronized (searchLock) {
+			stopPending = false;
+		}
+	}
+
+	/**
+	 * Send the stop asked for before the search started, if any. Called with the search lock
+	 * held, after the search was started.
+	 */
+	private void sendPendingStop() {
+		if (stopPending) {
+			stopPending = false;
+			sendStop();
+		}
+	}
+
+	/**
+	 * Tell the engine that the opponent played the move it is pondering on, so the ponder search
+	 * goes on as a normal search and its time limit starts to run.
+	 *
+	 * @return True if a ponder search was switched over; false if there is none, for example
+	 * because it hasn't started yet or is already stopping, in which case a new search is needed
+	 */
+	public final boolean ponderHit() {
+		synchronized (searchLock) {
+			if (!searching || !pondering || stopSent) {
+				return false;
+			}
+
+			if (inProcessEngine != null) {
+				inProcessEngine.ponderHit();
+			} else {
+				npp.writeLineToProcess("ponderhit");
+			}
+			pondering = false;
+			scheduleTimeLimit(ponderTimeLimitMillis);
+			return true;
+		}
+	}
+
 	public final Pair<String, ArrayList<Move>> getBookHints(Position pos) {
 		Pair<String, ArrayList<Move>> bi = book.getAllBookMoves(pos);
 		return new Pair<>(bi.first, bi.second);
 	}
 
 	public final boolean isStoppingSearch() {
-		return shouldStopSearch.get();
+		synchronized (searchLock) {
+			return stopSent;
+		}
 	}
 
-	public final String analyze(Position prevPos, @NonNull SearchListener searchListener,
-	                            ArrayList<Move> mList, Position currPos, boolean drawOffer) throws InterruptedException {
-		if (!npp.isProcessAlive()) {
+	/**
+	 * Analyze a position until the search is stopped, reporting the given number of best
+	 * variations. The variations are searched together, which costs much less than analyzing
+	 * each candidate move on its own.
+	 *
+	 * @param numPV Number of variations to report, 1 for the best move only
+	 */
+	public final String analyze(PositionSnapshot prevPos, @NonNull SearchListener searchListener,
+	                            ArrayList<Move> mList, PositionSnapshot currSnapshot, boolean drawOffer,
+	                            int numPV) throws InterruptedException {
+		if (npp != null && !npp.isProcessAlive()) {
 			throw new IllegalStateException("Engine process is not initialized");
-		} else if (shouldStopSearch.get()) {
-			throw new IllegalStateException("shouldStopSearch cannot be true when starting analysis");
 		}
 
 		prepareIfNeeded();
 
+		Position currPos = new Position(currSnapshot);
 		Pair<String, ArrayList<Move>> bi = getBookHints(currPos);
 		searchListener.notifyBookInfo(bi.first, bi.second);
 
@@ -435,9 +1053,98 @@ public class EnginePlayer {
 			return null;
 		}
 
+		setRandomness(0);
+		maybeNewGame();
+		setMultiPV(Math.max(1, Math.min(numPV, moves.size())));
+		sendCommand(positionCommand(prevPos, mList));
+
+		// show what earlier analysis found while the engine catches up
+		AnalysisCache cache = AnalysisCache.getInstance();
+		if (cache != null) {
+			searchListener = cache.track(currSnapshot, searchListener);
+		}
+
+		return runSearch("go infinite", 0, false, currSnapshot, searchListener);
+	}
+
+	/**
+	 * Search a position from scratch with the given "go" command, to measure the engine's speed.
+	 *
+	 * @param timeLimitMillis Time after which the search is stopped
+	 * @return The depth reached
+	 */
+	final int benchSearch(PositionSnapshot pos, String goCmd, int timeLimitMillis)
+			throws InterruptedException {
+		clearTT();
+		setRandomness(0);
+		maybeNewGame();
+		setMultiPV(1);
+		sendCommand("position fen " + pos.getFEN());
+
+		ResultListener result = new ResultListener();
+		runSearch(goCmd, timeLimitMillis, false, pos, result);
+		return result.depth;
+	}
+
+	/**
+	 * Evaluate a position with a search limited by depth or nodes, without reporting progress.
+	 * Results of earlier analysis are used when they are deep enough, and new results are added
+	 * to the {@link AnalysisCache}.
+	 *
+	 * @param prevPos An earlier position from the game
+	 * @param mList   Moves to go from the earlier position to the position to evaluate
+	 * @param depth   Depth to search to, or 0 for no depth limit
+	 * @param nodes   Number of nodes to search, or 0 for no node limit
+	 * @return The best line found with its score, or null if the side to move has no legal moves
+	 * or the search was stopped before it found a line
+	 */
+	public final AnalysisCache.Entry evaluate(PositionSnapshot prevPos, ArrayList<Move> mList,
+	                                          PositionSnapshot pos, int depth, int nodes)
+			throws InterruptedException {
+		if (MoveGenerator.INSTANCE.generateLegalMoves(new Position(pos)).isEmpty()) {
+			return null;
+		}
+
+		AnalysisCache cache = AnalysisCache.getInstance();
+		AnalysisCache.Entry cached = cache == null ? null : cache.get(pos);
+		if (cached != null && depth > 0 && cached.depth >= depth) {
+			return cached;
+		}
+
+		setRandomness(0);
+		maybeNewGame();
+		setMultiPV(1);
+		sendCommand(positionCommand(prevPos, mList));
+
+		StringBuilder goCmd = new StringBuilder("go");
+		if (depth > 0) {
+			goCmd.append(" depth ").append(depth);
+		}
+		if (nodes > 0) {
+			goCmd.append(" nodes ").append(nodes);
+		}
+
+		ResultListener result = new ResultListener();
+		runSearch(goCmd.toString(), 0, false, pos, result);
+		if (result.pvDepth == 0) {
+			// stopped before the first iteration was done
+			return null;
+		}
+
+		int[] pv = Arrays.copyOf(result.pv, result.pvLength);
+		if (cache != null) {
+			cache.put(pos, result.pvDepth, result.score, result.isMate, result.upperBound,
+					result.lowerBound, pv, pv.length);
+		}
+
+		return new AnalysisCache.Entry(result.pvDepth, result.score, result.isMate,
+				result.upperBound, result.lowerBound, pv);
+	}
+
+	private static String positionCommand(PositionSnapshot prevPos, List<Move> mList) {
 		StringBuilder posStr = new StringBuilder();
 		posStr.append("position fen ");
-		posStr.append(TextIO.toFEN(prevPos));
+		posStr.append(prevPos.getFEN());
 		int nMoves = mList.size();
 		if (nMoves > 0) {
 			posStr.append(" moves");
@@ -447,11 +1154,55 @@ public class EnginePlayer {
 			}
 		}
 
-		maybeNewGame();
-		npp.writeLineToProcess(posStr.toString());
-		npp.writeLineToProcess("go infinite");
+		return posStr.toString();
+	}
 
-		return runEngineMonitorLoop(currPos, searchListener);
+	/**
+	 * Records the depth reached and the best line of a search that isn't displayed.
+	 */
+	private static final class ResultListener implements SearchListener {
+		int depth;
+		int pvDepth;
+		int score;
+		boolean isMate;
+		boolean upperBound;
+		boolean lowerBound;
+		final int[] pv = new int[SearchInfo.MAX_PV_LENGTH];
+		int pvLength;
+
+		@Override
+		public void notifyDepth(int depth) {
+			this.depth = depth;
+		}
+
+		@Override
+		public void notifyCurrMove(PositionSnapshot pos, int move, int moveNr) {
+		}
+
+		@Override
+		public void notifyPV(PositionSnapshot pos, int multiPV, int depth, int score, int time,
+		                     int nodes, int nps, boolean isMate, boolean upperBound,
+		                     boolean lowerBound, int[] pv, int pvLength) {
+			if (multiPV > 1) {
+				return;
+			}
+
+			pvDepth = depth;
+			this.score = score;
+			this.isMate = isMate;
+			this.upperBound = upperBound;
+			this.lowerBound = lowerBound;
+			this.pvLength = Math.min(pvLength, this.pv.length);
+			System.arraycopy(pv, 0, this.pv, 0, this.pvLength);
+		}
+
+		@Override
+		public void notifyStats(int nodes, int nps, int time) {
+		}
+
+		@Override
+		public void notifyBookInfo(String bookInfo, List<Move> moveList) {
+		}
 	}
 
 	/**
@@ -489,87 +1240,63 @@ public class EnginePlayer {
 		statsModified = false;
 	}
 
-	private void parseInfoCmd(String[] tokens) {
-		try {
-			int nTokens = tokens.length;
-			int i = 1;
-			while (i < nTokens - 1) {
-				String is = tokens[i++];
-				switch (is) {
-					case "depth":
-						statCurrDepth = Integer.parseInt(tokens[i++]);
-						depthModified = true;
-						break;
-					case "currmove":
-						statCurrMove = tokens[i++];
-						currMoveModified = true;
-						break;
-					case "currmovenumber":
-						statCurrMoveNr = Integer.parseInt(tokens[i++]);
-						currMoveModified = true;
-						break;
-					case "time":
-						statTime = Integer.parseInt(tokens[i++]);
-						statsModified = true;
-						break;
-					case "nodes":
-						statNodes = Integer.parseInt(tokens[i++]);
-						statsModified = true;
-						break;
-					case "nps":
-						statNps = Integer.parseInt(tokens[i++]);
-						statsModified = true;
-						break;
-					case "pv":
-						statPV.clear();
-						while (i < nTokens)
-							statPV.add(tokens[i++]);
-						pvModified = true;
-						statPVDepth = statCurrDepth;
-						break;
-					case "score":
-						statIsMate = tokens[i++].equals("mate");
-						statScore = Integer.parseInt(tokens[i++]);
-						statUpperBound = false;
-						statLowerBound = false;
-						if (tokens[i].equals("upperbound")) {
-							statUpperBound = true;
-							i++;
-						} else if (tokens[i].equals("lowerbound")) {
-							statLowerBound = true;
-							i++;
-						}
-						pvModified = true;
-						break;
-				}
-			}
-		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
-			e.printStackTrace();
+	/**
+	 * Update the search statistics from an "info" line decoded by the reader thread.
+	 */
+	private void applyInfo(SearchInfo info) {
+		// lower ranked variations may still be at the depth of the previous iteration
+		if (info.has(SearchInfo.HAS_DEPTH) && info.multiPV <= 1) {
+			statCurrDepth = info.depth;
+			depthModified = true;
+		}
+
+		if (info.has(SearchInfo.HAS_CURR_MOVE)) {
+			statCurrMove = info.currMove;
+			statCurrMoveNr = info.currMoveNr;
+			currMoveModified = true;
+		}
+
+		if (info.has(SearchInfo.HAS_STATS)) {
+			statTime = info.time;
+			statNodes = info.nodes;
+			statNps = info.nps;
+			statsModified = true;
+		}
+
+		if (info.has(SearchInfo.HAS_PV)) {
+			System.arraycopy(info.pv, 0, statPV, 0, info.pvLength);
+			statPVLength = info.pvLength;
+			statPVDepth = info.has(SearchInfo.HAS_DEPTH) ? info.depth : statCurrDepth;
+			statMultiPV = info.multiPV;
+			pvModified = true;
+		}
+
+		if (info.has(SearchInfo.HAS_SCORE)) {
+			statScore = info.score;
+			statIsMate = info.isMate;
+			statUpperBound = info.upperBound;
+			statLowerBound = info.lowerBound;
+			pvModified = true;
 		}
 	}
 
 	/**
 	 * Notify GUI about search statistics.
 	 */
-	private void updateThinkingProgress(Position pos, @NonNull SearchListener searchListener) {
+	private void updateThinkingProgress(PositionSnapshot pos, @NonNull SearchListener searchListener) {
 		if (depthModified) {
 			searchListener.notifyDepth(statCurrDepth);
 			depthModified = false;
 		}
 
 		if (currMoveModified) {
-			Move m = TextIO.UCIstringToMove(statCurrMove);
-			searchListener.notifyCurrMove(pos, m, statCurrMoveNr);
+			searchListener.notifyCurrMove(pos, statCurrMove, statCurrMoveNr);
 			currMoveModified = false;
 		}
 
 		if (pvModified) {
-			ArrayList<Move> moves = new ArrayList<Move>();
-			int nMoves = statPV.size();
-			for (int i = 0; i < nMoves; i++)
-				moves.add(TextIO.UCIstringToMove(statPV.get(i)));
-			searchListener.notifyPV(pos, statPVDepth, statScore, statTime, statNodes, statNps,
-					statIsMate, statUpperBound, statLowerBound, moves);
+			searchListener.notifyPV(pos, statMultiPV, statPVDepth, statScore, statTime, statNodes,
+					statNps, statIsMate, statUpperBound, statLowerBound, statPV, statPVLength);
 			pvModified = false;
 		}
 
@@ -579,32 +1306,153 @@ public class EnginePlayer {
 		}
 	}
 
+	/**
+	 * Ask the engine to stop searching, and wait until the search in progress has reported its
+	 * best move. The engine process and its hash table are kept; only if the engine doesn't stop
+	 * within {@link #STOP_TIMEOUT_MILLIS} is it shut down.
+	 * <p/>
+	 * For an engine process, the wait is on the search's best move future, which the reader
+	 * thread completes as soon as "bestmove" arrives, so stopping never waits for the searching
+	 * thread.
+	 */
 	public final void stopSearch() {
 		if (!isPrepared()) {
 			return;
 		}
 
-//		if (shouldStopSearch.get()) {
-//			// search is already being stopped
-//			return;
-//		}
+		EngineFuture<String> result;
+		synchronized (searchLock) {
+			if (!searching) {
+				return;
+			}
+
+			if (!stopSent) {
+				if (inProcessEngine != null) {
+					Log.i(getClass().getSimpleName(), this + " stopping in-process search");
+				} else {
+					Log.i(getClass().getSimpleName(), this + " stopping search for " + npp.toString());
+				}
+				sendStop();
+			}
 
-		Log.i(getClass().getSimpleName(), this + " received shouldStopSearch for " + npp.toString());
-		synchronized (shouldStopSearch) {
-			shouldStopSearch.set(true);
+			result = searchResult;
+		}
 
-			//TODO: remove this once "stop" actually stops the engine from thinking
-			EnginePlayer.shutdownEngine();
+		if (result != null) {
+			try {
+				result.get(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// the engine process is already gone
+				return;
+			} catch (TimeoutException e) {
+				// fall through and shut the engine down
+			}
+		} else {
+			// the in-process search runs on the searching thread, so wait for it to return
+			synchronized (searchLock) {
+				long deadline = SystemClock.uptimeMillis() + STOP_TIMEOUT_MILLIS;
+				while (searching) {
+					long remaining = deadline - SystemClock.uptimeMillis();
+					if (remaining <= 0) {
+						break;
+					}
 
-			while (npp.isProcessAlive()) {
-				try {
-					Thread.sleep(10);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+					try {
+						searchLock.wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+
+				if (!searching) {
+					return;
 				}
 			}
+		}
+
+		Log.w(getClass().getSimpleName(), "Engine did not stop within " + STOP_TIMEOUT_MILLIS
+				+ " ms, shutting it down");
+		shutdownPlayer(this);
+	}
+
+	/**
+	 * Receives the output of the in-process engine and feeds it through the same statistics and
+	 * listener notifications as parsed "info" lines. One instance is reused for all searches.
+	 */
+	private final class InProcessListener implements InProcessEngine.Listener {
+		private PositionSnapshot pos;
+		private SearchListener searchListener;
+		String bestMove = "";
+
+		void begin(PositionSnapshot pos, SearchListener searchListener) {
+			this.pos = pos;
+			this.searchListener = searchListener;
+			bestMove = "";
+		}
+
+		void end() {
+			pos = null;
+			searchListener = null;
+		}
+
+		@Override
+		public void onDepth(int depth) {
+			statCurrDepth = depth;
+			depthModified = true;
+			updateThinkingProgress(pos, searchListener);
+		}
+
+		@Override
+		public void onCurrMove(int move, int moveNr) {
+			statCurrMove = move;
+			statCurrMoveNr = moveNr;
+			currMoveModified = true;
+			updateThinkingProgress(pos, searchListener);
+		}
+
+		@Override
+		public void onPV(int multiPV, int depth, int score, boolean isMate, int bound, int time,
+		                 int nodes, int nps, int pvLength) {
+			if (multiPV <= 1) {
+				statCurrDepth = depth;
+				depthModified = true;
+			}
+			statPVDepth = depth;
+			statMultiPV = multiPV;
+			statScore = score;
+			statIsMate = isMate;
+			statUpperBound = bound == InProcessEngine.BOUND_UPPER;
+			statLowerBound = bound == InProcessEngine.BOUND_LOWER;
+			statTime = time;
+			statNodes = nodes;
+			statNps = nps;
+			statPVLength = Math.min(pvLength, statPV.length);
+			for (int i = 0; i < statPVLength; i++) {
+				statPV[i] = inProcessEngine.getPVMove(i);
+			}
+
+			pvModified = true;
+			statsModified = true;
+			updateThinkingProgress(pos, searchListener);
+		}
+
+		@Override
+		public void onStats(int nodes, int nps, int time) {
+			statNodes = nodes;
+			statNps = nps;
+			statTime = time;
+			statsModified = true;
+			updateThinkingProgress(pos, searchListener);
+		}
 
-			shouldStopSearch.set(false);
+		@Override
+		public void onBestMove(int bestMove, int ponderMove) {
+			this.bestMove = bestMove != 0 ? TextIO.moveToUCIString(Move.fromCompact(bestMove)) : "";
 		}
 	}
 }
@@ -0,0 +1,167 @@
+package org.empyrn.darkknight.engine;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Leases engine sessions for searches that run alongside the game's own engine, such as game
+ * review or hints, so that they don't have to preempt it.
+ * <p/>
+ * Each session is an {@link EnginePlayer} with its own engine process, hash table size and
+ * number of search threads. A released session is kept idle and handed out again, reconfigured
+ * if needed, by the next lease that asks for the same priority.
+ */
+public final class EnginePool {
+	/** Number of released sessions kept running for reuse; the rest are shut down. */
+	private static final int MAX_IDLE_SESSIONS = 1;
+
+	private static EnginePool instance;
+
+	private final int maxSessions;
+	private final ArrayList<EnginePlayer> idleSessions = new ArrayList<>();
+	private int leasedSessions = 0;
+
+	private EnginePool(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * Get the pool. It allows one session per CPU core besides the one running the game's engine.
+	 */
+	@NonNull
+	public static synchronized EnginePool getInstance() {
+		if (instance == null) {
+			instance = new EnginePool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Lease a session, waiting for another session to be released if all are in use.
+	 *
+	 * @param hashMB  Hash table size in MB
+	 * @param threads Number of search threads, or 0 to leave the engine's setting unchanged
+	 * @return A session that must be given back with {@link #release(EnginePlayer)}
+	 */
+	@NonNull
+	public EnginePlayer lease(int hashMB, int threads) throws InterruptedException {
+		return lease(hashMB, threads, false);
+	}
+
+	/**
+	 * Lease a session, waiting for another session to be released if all are in use.
+	 *
+	 * @param hashMB     Hash table size in MB
+	 * @param threads    Number of search threads, or 0 to leave the engine's setting unchanged
+	 * @param background True for a session whose engine runs at background priority, so that it
+	 *                   only gets the CPU time that other searches leave
+	 * @return A session that must be given back with {@link #release(EnginePlayer)}
+	 */
+	@NonNull
+	public EnginePlayer lease(int hashMB, int threads, boolean background)
+			throws InterruptedException {
+		EnginePlayer player;
+		synchronized (this) {
+			while (leasedSessions >= maxSessions) {
+				wait();
+			}
+
+			leasedSessions++;
+			player = takeIdleSession(hashMB, threads, background);
+		}
+
+		// starting or reconfiguring an engine talks to the engine process, so not under the lock
+		try {
+			if (player == null) {
+				player = EnginePlayer.createSession(hashMB, threads, background);
+				Log.i(getClass().getSimpleName(), "Started " + (background ? "background " : "")
+						+ "engine session with " + hashMB + " MB hash, " + threads + " threads");
+			} else {
+				player.configure(hashMB, threads);
+			}
+
+			return player;
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				leasedSessions--;
+				notifyAll();
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Give back a leased session. Any search still running on it is stopped.
+	 */
+	public void release(@NonNull EnginePlayer player) {
+		player.stopSearch();
+
+		boolean keep;
+		synchronized (this) {
+			leasedSessions--;
+			keep = player.isAlive() && idleSessions.size() < MAX_IDLE_SESSIONS;
+			if (keep) {
+				idleSessions.add(player);
+			}
+
+			notifyAll();
+		}
+
+		if (!keep) {
+			player.shutdown();
+		}
+	}
+
+	/**
+	 * Shut down all idle sessions, for instance when the app goes to the background. Leased
+	 * sessions are not affected.
+	 */
+	public void shutdownIdleSessions() {
+		ArrayList<EnginePlayer> sessions;
+		synchronized (this) {
+			sessions = new ArrayList<>(idleSessions);
+			idleSessions.clear();
+		}
+
+		for (EnginePlayer player : sessions) {
+			player.shutdown();
+		}
+	}
+
+	/**
+	 * Take an idle session with the requested priority, preferring one that already has the
+	 * requested settings. The priority of a running engine can't be changed.
+	 */
+	private EnginePlayer takeIdleSession(int hashMB, int threads, boolean background) {
+		EnginePlayer best = null;
+		for (EnginePlayer player : idleSessions) {
+			if (!player.isAlive() || player.isBackground() != background) {
+				continue;
+			}
+
+			if (player.getHashSizeMB() == hashMB && player.getThreads() == threads) {
+				best = player;
+				break;
+			} else if (best == null) {
+				best = player;
+			}
+		}
+
+		if (best != null) {
+			idleSessions.remove(best);
+		}
+
+		// sessions whose process has died are dropped
+		for (int i = idleSessions.size() - 1; i >= 0; i--) {
+			if (!idleSessions.get(i).isAlive()) {
+				idleSessions.remove(i);
+			}
+		}
+
+		return best;
+	}
+}
@@ -0,0 +1,286 @@
+package org.empyrn.darkknight.engine;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reads the output of one engine process on a dedicated thread and decodes it, so that nobody
+ * has to poll the process.
+ * <p/>
+ * Answers to "uci" and "isready" complete futures registered before the command is sent. While a
+ * search is running, its "info" lines are queued as {@link SearchInfo} events for the searching
+ * thread, and its "bestmove" completes the search's future as well as ending the queue. When the
+ * process exits, all pending futures fail and a {@link SearchInfo#CLOSED} event is queued.
+ */
+final class EngineReader implements Runnable {
+	/**
+	 * Timeout of a single read. The reader only wakes up this often when the engine is idle; it
+	 * exits as soon as the process does.
+	 */
+	private static final int READ_TIMEOUT_MILLIS = 60 * 1000;
+
+	/**
+	 * Number of events a search's queue holds. When the queue is full, the oldest search info is
+	 * dropped to make room, since the newer info supersedes it; the last slot is kept for the
+	 * final event.
+	 */
+	private static final int QUEUE_CAPACITY = 64;
+
+	private final NativePipedProcess npp;
+	private final UCITokenizer tok = new UCITokenizer();
+
+	// state below is guarded by this
+	private String engineName;
+	private EngineFuture<String> uciOk;
+	private final ArrayDeque<EngineFuture<Void>> readyOks = new ArrayDeque<>();
+	private EngineFuture<String> bestMove;
+	private ArrayBlockingQueue<SearchInfo> searchEvents;
+	private boolean closed = false;
+
+	private EngineReader(NativePipedProcess npp) {
+		this.npp = npp;
+	}
+
+	/**
+	 * Start a reader thread for the given process.
+	 */
+	static EngineReader start(NativePipedProcess npp) {
+		EngineReader reader = new EngineReader(npp);
+		Thread thread = new Thread(reader, "EngineReader " + npp);
+		thread.setDaemon(true);
+		thread.start();
+		return reader;
+	}
+
+	/**
+	 * Expect the answer to a "uci" command, which must be sent after calling this.
+	 *
+	 * @return A future completed with the engine's name on "uciok"
+	 */
+	synchronized EngineFuture<String> expectUciOk() {
+		uciOk = new EngineFuture<>();
+		if (closed) {
+			uciOk.fail(new IllegalStateException("Engine process has exited"));
+		}
+
+		return uciOk;
+	}
+
+	/**
+	 * Expect the answer to an "isready" command, which must be sent after calling this.
+	 */
+	synchronized EngineFuture<Void> expectReadyOk() {
+		EngineFuture<Void> future = new EngineFuture<>();
+		if (closed) {
+			future.fail(new IllegalStateException("Engine process has exited"));
+		} else {
+			readyOks.add(future);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Expect the output of a search, which must be started after calling this. Search info is
+	 * delivered through the returned queue, which ends with a {@link SearchInfo#BEST_MOVE} or
+	 * {@link SearchInfo#CLOSED} event. Events taken from the queue should be recycled.
+	 *
+	 * @param result Completed with the best move when the search is over
+	 */
+	synchronized ArrayBlockingQueue<SearchInfo> expectSearch(EngineFuture<String> result) {
+		bestMove = result;
+		searchEvents = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		if (closed) {
+			endSearch(SearchInfo.obtain(SearchInfo.CLOSED));
+		}
+
+		return searchEvents;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				int len = npp.readLine(READ_TIMEOUT_MILLIS);
+				if (len < 0) {
+					break;
+				} else if (len > 0) {
+					tok.reset(npp.getLineBuffer(), npp.getLineStart(), npp.getLineEnd());
+					processLine();
+				}
+			}
+		} catch (RuntimeException e) {
+			Log.e(getClass().getSimpleName(), "Failed to read from engine", e);
+		} finally {
+			close();
+		}
+	}
+
+	private void processLine() {
+		if (!tok.next()) {
+			return;
+		}
+
+		if (tok.is("info")) {
+			SearchInfo info = SearchInfo.obtain(SearchInfo.INFO);
+			parseInfo(info);
+			SearchInfo dropped = null;
+			synchronized (this) {
+				if (searchEvents == null) {
+					dropped = info;
+				} else {
+					// the newest line has the deepest PV and score, so the oldest one goes
+					if (searchEvents.remainingCapacity() <= 1) {
+						dropped = searchEvents.poll();
+					}
+					searchEvents.add(info);
+				}
+			}
+
+			if (dropped != null) {
+				dropped.recycle();
+			}
+		} else if (tok.is("bestmove")) {
+			SearchInfo info = SearchInfo.obtain(SearchInfo.BEST_MOVE);
+			info.bestMove = tok.next() ? tok.stringValue() : "";
+			synchronized (this) {
+				if (bestMove != null) {
+					bestMove.set(info.bestMove);
+				}
+				endSearch(info);
+			}
+		} else if (tok.is("readyok")) {
+			synchronized (this) {
+				EngineFuture<Void> future = readyOks.poll();
+				if (future != null) {
+					future.set(null);
+				}
+			}
+		} else if (tok.is("uciok")) {
+			synchronized (this) {
+				if (uciOk != null) {
+					uciOk.set(engineName);
+					uciOk = null;
+				}
+			}
+		} else if (tok.is("id")) {
+			if (tok.next() && tok.is("name")) {
+				StringBuilder name = new StringBuilder();
+				while (tok.next()) {
+					if (name.length() > 0) {
+						name.append(' ');
+					}
+					name.append(tok.stringValue());
+				}
+
+				synchronized (this) {
+					engineName = name.toString();
+				}
+			}
+		}
+	}
+
+	private void parseInfo(SearchInfo info) {
+		try {
+			while (tok.next()) {
+				if (tok.is("depth")) {
+					tok.next();
+					info.depth = tok.intValue();
+					info.fields |= SearchInfo.HAS_DEPTH;
+				} else if (tok.is("seldepth")) {
+					tok.next();
+					info.selDepth = tok.intValue();
+				} else if (tok.is("multipv")) {
+					tok.next();
+					info.multiPV = tok.intValue();
+				} else if (tok.is("currmove")) {
+					tok.next();
+					info.currMove = tok.compactMoveValue();
+					info.fields |= SearchInfo.HAS_CURR_MOVE;
+				} else if (tok.is("currmovenumber")) {
+					tok.next();
+					info.currMoveNr = tok.intValue();
+					info.fields |= SearchInfo.HAS_CURR_MOVE;
+				} else if (tok.is("time")) {
+					tok.next();
+					info.time = tok.intValue();
+					info.fields |= SearchInfo.HAS_STATS;
+				} else if (tok.is("nodes")) {
+					tok.next();
+					info.nodes = tok.intValue();
+					info.fields |= SearchInfo.HAS_STATS;
+				} else if (tok.is("nps")) {
+					tok.next();
+					info.nps = tok.intValue();
+					info.fields |= SearchInfo.HAS_STATS;
+				} else if (tok.is("hashfull")) {
+					tok.next();
+					info.hashFull = tok.intValue();
+				} else if (tok.is("tbhits")) {
+					tok.next();
+					info.tbHits = tok.intValue();
+				} else if (tok.is("pv")) {
+					while (tok.next()) {
+						int move = tok.compactMoveValue();
+						if (move < 0) {
+							break;
+						}
+						info.addPVMove(move);
+					}
+					info.fields |= SearchInfo.HAS_PV;
+				} else if (tok.is("score")) {
+					tok.next();
+					info.isMate = tok.is("mate");
+					tok.next();
+					info.score = tok.intValue();
+					info.fields |= SearchInfo.HAS_SCORE;
+				} else if (tok.is("upperbound")) {
+					// bounds follow the score they apply to
+					info.upperBound = true;
+				} else if (tok.is("lowerbound")) {
+					info.lowerBound = true;
+				}
+			}
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Queue the final event of the current search, if any. Called with the lock held.
+	 */
+	private void endSearch(SearchInfo event) {
+		if (searchEvents != null) {
+			searchEvents.add(event);
+			searchEvents = null;
+		} else {
+			event.recycle();
+		}
+
+		bestMove = null;
+	}
+
+	private synchronized void close() {
+		closed = true;
+
+		IllegalStateException exited = new IllegalStateException("Engine process has exited");
+		if (uciOk != null) {
+			uciOk.fail(exited);
+			uciOk = null;
+		}
+
+		for (EngineFuture<Void> future : readyOks) {
+			future.fail(exited);
+		}
+		readyOks.clear();
+
+		if (bestMove != null) {
+			bestMove.fail(exited);
+		}
+		endSearch(SearchInfo.obtain(SearchInfo.CLOSED));
+
+		Log.i(getClass().getSimpleName(), "Engine output closed for " + npp);
+	}
+}
@@ -0,0 +1,326 @@
+package org.empyrn.darkknight.engine;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.empyrn.darkknight.gamelogic.ChessParseError;
+import org.empyrn.darkknight.gamelogic.PositionSnapshot;
+import org.empyrn.darkknight.gamelogic.TextIO;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.TreeSet;
+
+/**
+ * Chooses the engine's hash table size and number of search threads for the device it runs on.
+ * <p/>
+ * The hash size follows the device's memory. The thread count is calibrated once per device:
+ * a short benchmark searches a few positions to a fixed depth with each candidate count, and the
+ * fastest count is kept, unless a smaller one is almost as fast. The result is stored and used
+ * whenever an engine is started.
+ * <p/>
+ * The benchmark only means something with the CPU to itself, so it waits until the engine has
+ * booted and no search has run for a while, and a run that overlaps another search is thrown
+ * away and tried again later.
+ */
+public final class EngineResources {
+	private static final String PREFS_NAME = "engine_resources";
+	private static final String KEY_DEVICE = "device";
+	private static final String KEY_THREADS = "threads";
+
+	/** Most threads the engine supports. */
+	private static final int MAX_THREADS = 8;
+	private static final int MIN_HASH_MB = 16;
+	private static final int MAX_HASH_MB = 256;
+
+	/** Time each calibration position is searched with one thread, to find the depth to reach. */
+	private static final int CALIBRATION_SEARCH_MILLIS = 700;
+
+	/** A smaller thread count is preferred unless a larger one is faster by more than this. */
+	private static final double MIN_SPEEDUP = 1.1;
+
+	/** Time without searches after which the engine is taken to be idle. */
+	private static final int IDLE_MILLIS = 5000;
+
+	/** Calibration runs tried before giving up until the app is started again. */
+	private static final int MAX_CALIBRATION_ATTEMPTS = 5;
+
+	/** Result of a calibration run that overlapped another search. */
+	private static final int CALIBRATION_DISTURBED = -1;
+
+	/** Positions from the engine's own benchmark. */
+	private static final String[] CALIBRATION_FENS = {
+			"r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+			"r1bq1r1k/1pp1n1pp/1p1p4/4p2Q/4Pp2/1BNP4/PPP2PPP/3R1RK1 w - - 2 14",
+	};
+
+	private static volatile int hashMB = EnginePlayer.DEFAULT_HASH_MB;
+	/** Number of search threads, or 0 to keep the engine's default until calibrated. */
+	private static volatile int threads = 0;
+	private static boolean initialized = false;
+
+	private EngineResources() {
+	}
+
+	/**
+	 * Detect the device's resources and load the calibrated thread count, starting the
+	 * calibration in the background if the device hasn't been calibrated yet. Must be called
+	 * before the first engine is started; later calls have no effect.
+	 */
+	public static synchronized void init(@NonNull Context context) {
+		if (initialized) {
+			return;
+		}
+		initialized = true;
+
+		final Context appContext = context.getApplicationContext();
+		hashMB = chooseHashMB(appContext);
+
+		final SharedPreferences prefs = appContext.getSharedPreferences(PREFS_NAME,
+				Context.MODE_PRIVATE);
+		final String device = Build.FINGERPRINT + "/" + Runtime.getRuntime().availableProcessors();
+		if (device.equals(prefs.getString(KEY_DEVICE, null))) {
+			threads = prefs.getInt(KEY_THREADS, 0);
+			Log.i(EngineResources.class.getSimpleName(), "Using " + hashMB + " MB hash, "
+					+ threads + " threads");
+			return;
+		}
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < MAX_CALIBRATION_ATTEMPTS; i++) {
+					if (!awaitIdleEngine()) {
+						return;
+					}
+
+					int calibrated = calibrateThreads();
+					if (calibrated == CALIBRATION_DISTURBED) {
+						Log.i(EngineResources.class.getSimpleName(),
+								"Calibration overlapped a search, trying again later");
+						continue;
+					}
+
+					if (calibrated > 0) {
+						threads = calibrated;
+						prefs.edit().putString(KEY_DEVICE, device)
+								.putInt(KEY_THREADS, calibrated).apply();
+					}
+					return;
+				}
+			}
+		}, "EngineCalibration");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * @return The hash table size for the device's engines, in MB
+	 */
+	public static int getHashMB() {
+		return hashMB;
+	}
+
+	/**
+	 * @return The number of search threads, or 0 if the engine's default is to be used
+	 */
+	public static int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Get the depth below which the engine doesn't split the search between threads. Splitting
+	 * shallow nodes costs more in synchronization than it gains when there are many threads.
+	 */
+	static int getMinSplitDepth(int threads) {
+		return threads >= 8 ? 7 : threads >= 4 ? 5 : 4;
+	}
+
+	/**
+	 * Get the most threads that may work on one split point, within the engine's range of 4 to 8.
+	 */
+	static int getMaxThreadsPerSplitPoint(int threads) {
+		return Math.max(4, Math.min(threads, 8));
+	}
+
+	/**
+	 * Give the hash table a share of the device's memory: the app's memory class, but no more
+	 * than a sixteenth of the total memory, rounded down to a power of two.
+	 */
+	private static int chooseHashMB(Context context) {
+		ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		if (am == null || am.isLowRamDevice()) {
+			return MIN_HASH_MB;
+		}
+
+		ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+		am.getMemoryInfo(memoryInfo);
+		long budget = Math.min(am.getMemoryClass(), memoryInfo.totalMem / (16 * 1024 * 1024));
+
+		int mb = MIN_HASH_MB;
+		while (mb * 2 <= budget && mb * 2 <= MAX_HASH_MB) {
+			mb *= 2;
+		}
+
+		return mb;
+	}
+
+	/**
+	 * Count the cores running at the highest maximum frequency, which on big.LITTLE devices are
+	 * the big ones.
+	 *
+	 * @return The number of big cores, or the number of cores if they can't be told apart
+	 */
+	private static int countBigCores(int cores) {
+		long[] maxFreqs = new long[cores];
+		long highest = 0;
+		for (int i = 0; i < cores; i++) {
+			maxFreqs[i] = readMaxFrequency(i);
+			if (maxFreqs[i] <= 0) {
+				return cores;
+			}
+			highest = Math.max(highest, maxFreqs[i]);
+		}
+
+		int big = 0;
+		for (long freq : maxFreqs) {
+			if (freq == highest) {
+				big++;
+			}
+		}
+
+		return big;
+	}
+
+	private static long readMaxFrequency(int cpu) {
+		String path = "/sys/devices/system/cpu/cpu" + cpu + "/cpufreq/cpuinfo_max_freq";
+		try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+			String line = reader.readLine();
+			return line == null ? -1 : Long.parseLong(line.trim());
+		} catch (IOException | NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Wait until the engine has booted and no search has been started for {@link #IDLE_MILLIS}.
+	 *
+	 * @return False if interrupted
+	 */
+	private static boolean awaitIdleEngine() {
+		EngineBootstrapper.getInstance().awaitBoot();
+		try {
+			while (true) {
+				long started = EnginePlayer.getSearchesStarted();
+				Thread.sleep(IDLE_MILLIS);
+				if (!EnginePlayer.isAnySearchRunning()
+						&& EnginePlayer.getSearchesStarted() == started) {
+					return true;
+				}
+			}
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Run one search of the calibration, and check that no other search ran at the same time.
+	 *
+	 * @return The depth reached, or {@link #CALIBRATION_DISTURBED} if another search overlapped
+	 */
+	private static int benchSearch(EnginePlayer session, PositionSnapshot pos, String goCmd,
+	                               int timeLimitMillis) throws InterruptedException {
+		long started = EnginePlayer.getSearchesStarted();
+		if (EnginePlayer.isAnySearchRunning()) {
+			return CALIBRATION_DISTURBED;
+		}
+
+		int depth = session.benchSearch(pos, goCmd, timeLimitMillis);
+		// only this search may have been started in the meantime
+		return EnginePlayer.getSearchesStarted() == started + 1 ? depth : CALIBRATION_DISTURBED;
+	}
+
+	/**
+	 * Time searches to a fixed depth with each candidate thread count: 1, 2, 4 and 8 threads,
+	 * the number of big cores and the number of all cores, as far as there are cores for them.
+	 *
+	 * @return The best thread count, 0 if the calibration failed, or
+	 * {@link #CALIBRATION_DISTURBED} if another search ran at the same time
+	 */
+	private static int calibrateThreads() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int limit = Math.min(cores, MAX_THREADS);
+		if (limit <= 1) {
+			return 1;
+		}
+
+		TreeSet<Integer> candidates = new TreeSet<>();
+		for (int t = 1; t <= limit; t *= 2) {
+			candidates.add(t);
+		}
+		candidates.add(Math.min(countBigCores(cores), limit));
+		candidates.add(limit);
+
+		EnginePlayer session = null;
+		try {
+			PositionSnapshot[] positions = new PositionSnapshot[CALIBRATION_FENS.length];
+			for (int i = 0; i < positions.length; i++) {
+				positions[i] = TextIO.readFEN(CALIBRATION_FENS[i]).snapshot();
+			}
+
+			session = EnginePlayer.createSession(MIN_HASH_MB, 1, false);
+
+			// the depth one thread reaches in the search time is the target for all counts
+			int[] depths = new int[positions.length];
+			for (int i = 0; i < positions.length; i++) {
+				int depth = benchSearch(session, positions[i],
+						"go movetime " + CALIBRATION_SEARCH_MILLIS, 2 * CALIBRATION_SEARCH_MILLIS);
+				if (depth == CALIBRATION_DISTURBED) {
+					return CALIBRATION_DISTURBED;
+				}
+				depths[i] = Math.max(1, depth);
+			}
+
+			int best = 1;
+			long bestMillis = Long.MAX_VALUE;
+			for (int t : candidates) {
+				session.configure(MIN_HASH_MB, t);
+				long millis = 0;
+				for (int i = 0; i < positions.length; i++) {
+					long t0 = SystemClock.uptimeMillis();
+					if (benchSearch(session, positions[i], "go depth " + depths[i],
+							4 * CALIBRATION_SEARCH_MILLIS) == CALIBRATION_DISTURBED) {
+						return CALIBRATION_DISTURBED;
+					}
+					millis += SystemClock.uptimeMillis() - t0;
+				}
+
+				Log.i(EngineResources.class.getSimpleName(), t + " threads: " + millis + " ms");
+				if (millis * MIN_SPEEDUP < bestMillis) {
+					best = t;
+					bestMillis = millis;
+				}
+			}
+
+			Log.i(EngineResources.class.getSimpleName(), "Calibrated to " + best + " threads of "
+					+ cores + " cores");
+			return best;
+		} catch (ChessParseError | RuntimeException e) {
+			Log.e(EngineResources.class.getSimpleName(), "Engine calibration failed", e);
+			return 0;
+		} catch (InterruptedException e) {
+			return 0;
+		} finally {
+			if (session != null) {
+				session.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package org.empyrn.darkknight.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The engine linked into the app process and driven through JNI, as an alternative to running
+ * the engine executable behind a {@link NativePipedProcess}.
+ * <p/>
+ * A search runs on the calling thread and reports to a {@link Listener} with primitive arguments.
+ * Principal variations are passed in a direct buffer as 16-bit moves in the layout of
+ * {@link org.empyrn.darkknight.gamelogic.Move#toCompact()}, so no UCI text is formatted or parsed
+ * while searching. The engine keeps global state, so there is only one instance per process.
+ */
+final class InProcessEngine {
+	static {
+		System.loadLibrary("stockfishjni");
+	}
+
+	static final int BOUND_EXACT = 0;
+	static final int BOUND_UPPER = 1;
+	static final int BOUND_LOWER = 2;
+
+	/** Maximum number of PV moves reported. */
+	private static final int PV_CAPACITY = 128;
+
+	private static InProcessEngine instance;
+
+	/**
+	 * Receives search output. All methods are called on the thread running
+	 * {@link #search(String, Listener)}.
+	 */
+	interface Listener {
+		void onDepth(int depth);
+
+		void onCurrMove(int move, int moveNr);
+
+		/**
+		 * @param score    Score in centipawns, or moves to mate if isMate is set
+		 * @param bound    One of {@link #BOUND_EXACT}, {@link #BOUND_UPPER} or {@link #BOUND_LOWER}
+		 * @param pvLength Number of moves available from {@link #getPVMove(int)}
+		 */
+		void onPV(int multiPV, int depth, int score, boolean isMate, int bound, int time,
+		          int nodes, int nps, int pvLength);
+
+		void onStats(int nodes, int nps, int time);
+
+		/** Called once at the end of the search. A move of 0 means no move. */
+		void onBestMove(int bestMove, int ponderMove);
+	}
+
+	private final String engineName;
+	private final ByteBuffer pvBuffer = ByteBuffer.allocateDirect(PV_CAPACITY * 2)
+			.order(ByteOrder.nativeOrder());
+
+	private InProcessEngine() {
+		engineName = initEngine();
+	}
+
+	static synchronized InProcessEngine getInstance() {
+		if (instance == null) {
+			instance = new InProcessEngine();
+		}
+
+		return instance;
+	}
+
+	String getEngineName() {
+		return engineName;
+	}
+
+	/**
+	 * Execute a UCI command other than "go", such as "position", "setoption" or "ucinewgame".
+	 */
+	void sendCommand(String command) {
+		executeCommand(command);
+	}
+
+	/**
+	 * Get a move of the PV last reported to {@link Listener#onPV}, in compact form.
+	 */
+	int getPVMove(int index) {
+		return pvBuffer.getShort(index * 2) & 0xffff;
+	}
+
+	/**
+	 * Run a search for a UCI "go" command, returning when the search has reported its best move.
+	 */
+	void search(String goCommand, Listener listener) {
+		search(goCommand, listener, pvBuffer);
+	}
+
+	/**
+	 * Ask the search in progress, or the next one to start, to stop. Can be called from any
+	 * thread.
+	 */
+	void stop() {
+		setStopRequest(true);
+	}
+
+	/**
+	 * Tell the ponder search in progress that the opponent played the expected move, so it
+	 * continues as a normal search. Can be called from any thread.
+	 */
+	void ponderHit() {
+		setPonderhitRequest(true);
+	}
+
+	/** Clear stop and ponderhit requests before starting a new search. */
+	void clearStop() {
+		setStopRequest(false);
+		setPonderhitRequest(false);
+	}
+
+	private static native String initEngine();
+
+	private static native void executeCommand(String command);
+
+	private static native void search(String goCommand, Listener listener, ByteBuffer pvBuffer);
+
+	private static native void setStopRequest(boolean stop);
+
+	private static native void setPonderhitRequest(boolean ponderhit);
+}
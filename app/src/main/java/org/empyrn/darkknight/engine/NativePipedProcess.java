@@ -5,35 +5,172 @@ import android.util.Log;
 
 import org.empyrn.darkknight.BuildConfig;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 public class NativePipedProcess {
 	static {
 		System.loadLibrary("jni");
 	}
 
-	private boolean processAlive;
+	/** Name of the engine executable, packaged as a native library so it is extracted on install. */
+	private static final String ENGINE_FILE_NAME = "libstockfish.so";
+
+	/** Niceness of engine processes, so that searching doesn't make the UI stutter. */
+	static final int NICE_DEFAULT = 5;
+
+	/** Niceness of engine processes doing background work, which yields to all other searches. */
+	static final int NICE_BACKGROUND = 19;
+
+	private static volatile String engineDirectory;
+
+	private final int niceIncrement;
+
+	/** Native state of the running process, or 0 if no process is running. */
+	private volatile long handle;
+
+	/** Held while reading, so the native state isn't released under a reader. */
+	private final Object readLock = new Object();
+
+	private static final int LINE_BUFFER_SIZE = 16 * 1024;
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * Lines read from the process, each terminated by '\n'. Filled natively, many lines at a
+	 * time, and consumed by {@link #readLine(int)}.
+	 */
+	private final ByteBuffer lineBuffer = ByteBuffer.allocateDirect(LINE_BUFFER_SIZE);
+	private int lineBufferEnd = 0;
+	private int nextLineStart = 0;
+	private int lineStart = 0;
+	private int lineEnd = 0;
+
+	/**
+	 * @param niceIncrement Niceness of the process, {@link #NICE_DEFAULT} or
+	 *                      {@link #NICE_BACKGROUND}. It is set when the process starts, since an
+	 *                      app may not raise its processes' priority again once lowered.
+	 */
+	NativePipedProcess(int niceIncrement) {
+		this.niceIncrement = niceIncrement;
+		handle = 0;
+	}
 
-	NativePipedProcess() {
-		processAlive = false;
+	/**
+	 * Set the directory holding the engine executable, normally the application's native library
+	 * directory. Must be called before the first process is started.
+	 */
+	public static void setEngineDirectory(String dir) {
+		engineDirectory = dir;
 	}
 
 	/** Start process. */
-	public final void initialize() {
-		if (!processAlive) {
-			startProcess();
-			processAlive = true;
+	public final synchronized void initialize() {
+		if (handle == 0) {
+			if (engineDirectory == null) {
+				throw new IllegalStateException("Engine directory not set");
+			}
+
+			// processes are started one at a time, so each child only inherits its own pipes
+			synchronized (NativePipedProcess.class) {
+				handle = startProcess(engineDirectory + "/" + ENGINE_FILE_NAME, niceIncrement);
+			}
+
+			if (handle == 0) {
+				throw new IllegalStateException("Could not start engine process");
+			}
 		}
 	}
 
 	/** Shut down process. */
 	public final void shutDown() {
-		if (processAlive) {
+		long h;
+		synchronized (this) {
+			if (handle == 0) {
+				return;
+			}
+
 			writeLineToProcess("quit", true);
-			processAlive = false;
+			h = handle;
+			handle = 0;
+		}
+
+		// the engine keeps nothing worth a clean exit, and once it is gone a reader blocked on
+		// the process sees end of file and lets go of the native state
+		killProcess(h);
+		synchronized (readLock) {
+			closeProcess(h);
 		}
 	}
 
 	public final boolean isProcessAlive() {
-		return processAlive;
+		return handle != 0;
+	}
+
+	/**
+	 * Advance to the next line from the process. The line is then found in
+	 * {@link #getLineBuffer()} between {@link #getLineStart()} and {@link #getLineEnd()}, and
+	 * stays there until the next call. Only one thread should read from a process.
+	 *
+	 * @param timeoutMillis Maximum time to wait for data
+	 * @return The length of the line, which is never empty,
+	 *         or 0 if no data available,
+	 *         or -1 if I/O error.
+	 */
+	public final int readLine(int timeoutMillis) {
+		synchronized (readLock) {
+			if (nextLineStart >= lineBufferEnd) {
+				long h = handle;
+				if (h == 0) {
+					return -1;
+				}
+
+				int n = readLines(h, lineBuffer, timeoutMillis);
+				if (n <= 0) {
+					return n;
+				}
+
+				lineBufferEnd = n;
+				nextLineStart = 0;
+			}
+
+			int i = nextLineStart;
+			while (lineBuffer.get(i) != '\n') {
+				i++;
+			}
+
+			lineStart = nextLineStart;
+			lineEnd = i;
+			nextLineStart = i + 1;
+
+			if (BuildConfig.DEBUG) {
+				Log.d("DK.UCI (" + this.toString() + ") -> Controller", getLine());
+			}
+
+			return lineEnd - lineStart;
+		}
+	}
+
+	/** The buffer holding the line last returned by {@link #readLine(int)}. */
+	public final ByteBuffer getLineBuffer() {
+		return lineBuffer;
+	}
+
+	public final int getLineStart() {
+		return lineStart;
+	}
+
+	public final int getLineEnd() {
+		return lineEnd;
+	}
+
+	/** The line last returned by {@link #readLine(int)}, as a string. */
+	private String getLine() {
+		byte[] bytes = new byte[lineEnd - lineStart];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = lineBuffer.get(lineStart + i);
+		}
+
+		return new String(bytes, ASCII);
 	}
 
 	/**
@@ -44,16 +181,16 @@ public class NativePipedProcess {
 	 *         or null if I/O error.
 	 */
 	public final String readLineFromProcess(int timeoutMillis) {
-		String ret = readFromProcess(timeoutMillis);
-		if (ret == null) {
-			return null;
+		synchronized (readLock) {
+			int n = readLine(timeoutMillis);
+			if (n < 0) {
+				return null;
+			} else if (n == 0) {
+				return "";
+			}
+
+			return getLine();
 		}
-
-		if (ret.length() > 0) {
-			Log.d("DK.UCI (" + this.toString() + ") -> Controller", ret);
-		}
-
-		return ret;
 	}
 
 	public final synchronized void writeLineToProcess(String data) {
@@ -71,19 +208,33 @@ public class NativePipedProcess {
 			Log.i("DK.Controller -> UCI (" + this.toString() + ")", data);
 		}
 
-		writeToProcess(data + "\n");
+		if (handle != 0) {
+			writeToProcess(handle, data + "\n");
+		}
 	}
 
-	/** Start the child process. */
-	private native void startProcess();
+	/**
+	 * Start the engine executable at the given path as a child process with the given niceness.
+	 *
+	 * @return A handle to the process, or 0 if it could not be started
+	 */
+	private static native long startProcess(String enginePath, int niceIncrement);
+
+	/** Kill the process, without releasing the handle. */
+	private static native void killProcess(long handle);
+
+	/** Close the pipes to the process and release the handle, killing the process if needed. */
+	private static native void closeProcess(long handle);
 
 	/**
-	 * Read a line of data from the process.
-	 * Return as soon as there is a full line of data to return, 
+	 * Fill dst with the complete lines available from the process, each terminated by '\n'.
+	 * Return as soon as there is at least one full line of data to return,
 	 * or when timeoutMillis milliseconds have passed.
+	 *
+	 * @return The number of bytes written, 0 on timeout, or -1 on I/O error
 	 */
-	private native String readFromProcess(int timeoutMillis);
+	private static native int readLines(long handle, ByteBuffer dst, int timeoutMillis);
 
 	/** Write data to the process. */
-	private native void writeToProcess(String data);
+	private static native void writeToProcess(long handle, String data);
 }
@@ -0,0 +1,116 @@
+package org.empyrn.darkknight.engine;
+
+/**
+ * A decoded line of engine output: search info, or the end of a search. Instances come from a
+ * small pool and are refilled in place, and moves are kept in the form of
+ * {@link org.empyrn.darkknight.gamelogic.Move#toCompact()}, so reporting a search creates no
+ * garbage per line.
+ */
+final class SearchInfo {
+	static final int INFO = 0;
+	static final int BEST_MOVE = 1;
+	static final int CLOSED = 2;
+
+	// fields present in an INFO event
+	static final int HAS_DEPTH = 1;
+	static final int HAS_CURR_MOVE = 1 << 1;
+	static final int HAS_STATS = 1 << 2;
+	static final int HAS_SCORE = 1 << 3;
+	static final int HAS_PV = 1 << 4;
+
+	/** Longest PV kept; Stockfish never searches deeper than this. */
+	static final int MAX_PV_LENGTH = 128;
+
+	private static final int POOL_SIZE = 64;
+	private static final SearchInfo[] pool = new SearchInfo[POOL_SIZE];
+	private static int pooled = 0;
+
+	int type;
+	int fields;
+	int depth;
+	int selDepth;
+	/** 1-based index of the line, for searches with more than one principal variation. */
+	int multiPV;
+	int currMove;
+	int currMoveNr;
+	int time;
+	int nodes;
+	int nps;
+	/** Hash table usage in permille. */
+	int hashFull;
+	int tbHits;
+	int score;
+	boolean isMate;
+	boolean upperBound;
+	boolean lowerBound;
+	final int[] pv = new int[MAX_PV_LENGTH];
+	int pvLength;
+
+	/** The best move in UCI format, for a BEST_MOVE event. */
+	String bestMove;
+
+	private SearchInfo() {
+	}
+
+	/**
+	 * Get an empty instance of the given type, from the pool if one is free.
+	 */
+	static SearchInfo obtain(int type) {
+		SearchInfo info = null;
+		synchronized (pool) {
+			if (pooled > 0) {
+				info = pool[--pooled];
+				pool[pooled] = null;
+			}
+		}
+
+		if (info == null) {
+			info = new SearchInfo();
+		}
+
+		info.type = type;
+		info.fields = 0;
+		info.depth = 0;
+		info.selDepth = 0;
+		info.multiPV = 1;
+		info.currMove = 0;
+		info.currMoveNr = 0;
+		info.time = 0;
+		info.nodes = 0;
+		info.nps = 0;
+		info.hashFull = 0;
+		info.tbHits = 0;
+		info.score = 0;
+		info.isMate = false;
+		info.upperBound = false;
+		info.lowerBound = false;
+		info.pvLength = 0;
+		info.bestMove = null;
+		return info;
+	}
+
+	/**
+	 * Return the instance to the pool. It must not be used afterwards.
+	 */
+	void recycle() {
+		bestMove = null;
+		synchronized (pool) {
+			if (pooled < POOL_SIZE) {
+				pool[pooled++] = this;
+			}
+		}
+	}
+
+	boolean has(int field) {
+		return (fields & field) != 0;
+	}
+
+	/**
+	 * Append a move to the PV, unless the PV is full.
+	 */
+	void addPVMove(int move) {
+		if (pvLength < MAX_PV_LENGTH) {
+			pv[pvLength++] = move;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package org.empyrn.darkknight.engine;
+
+/**
+ * The playing strength of the engine, as a budget for every move: a number of nodes to search, a
+ * cap on the time spent, and the engine's "Randomness" setting, which adds noise to its piece
+ * square tables so weak levels make human-like mistakes instead of always playing the same moves.
+ * <p/>
+ * A depth limit takes wildly different times depending on the position, and even a shallow search
+ * keeps a core busy until it is done. A node budget costs about the same in every position, so a
+ * level has a predictable strength, and the time cap bounds the CPU time and battery spent on a
+ * move on slow devices. Low levels answer in well under a second.
+ * <p/>
+ * In games with clocks the node budget is not used, since it would keep the engine from managing
+ * its time; the level only caps the time per move there.
+ */
+public enum StrengthLevel {
+	LEVEL_1(300, 100, 10),
+	LEVEL_2(1500, 200, 8),
+	LEVEL_3(6000, 300, 6),
+	LEVEL_4(25000, 500, 4),
+	LEVEL_5(100000, 1000, 2),
+	LEVEL_6(400000, 3000, 0),
+	LEVEL_7(2000000, 10000, 0);
+
+	/** Level of new installs. */
+	public static final StrengthLevel DEFAULT = LEVEL_2;
+
+	// depths of the old difficulty setting, by level
+	private static final int[] DEPTHS = {2, 3, 4, 6, 8, 12, 16};
+
+	private final int nodes;
+	private final int maxMoveTimeMillis;
+	private final int randomness;
+
+	StrengthLevel(int nodes, int maxMoveTimeMillis, int randomness) {
+		this.nodes = nodes;
+		this.maxMoveTimeMillis = maxMoveTimeMillis;
+		this.randomness = randomness;
+	}
+
+	/**
+	 * @return Number of nodes searched for a move when there are no clocks
+	 */
+	public int getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return Time in milliseconds after which a search is stopped, whatever the clocks allow
+	 */
+	public int getMaxMoveTimeMillis() {
+		return maxMoveTimeMillis;
+	}
+
+	/**
+	 * @return Value of the engine's "Randomness" option, 0 to 10
+	 */
+	public int getRandomness() {
+		return randomness;
+	}
+
+	/**
+	 * @return The number the level is shown and stored with, starting from 1
+	 */
+	public int getNumber() {
+		return ordinal() + 1;
+	}
+
+	/**
+	 * Get a level by its number, for instance from the settings.
+	 *
+	 * @return The level, or {@link #DEFAULT} if there is no such level
+	 */
+	public static StrengthLevel fromNumber(int number) {
+		StrengthLevel[] levels = values();
+		return number >= 1 && number <= levels.length ? levels[number - 1] : DEFAULT;
+	}
+
+	/**
+	 * Get the level closest in strength to a depth of the old difficulty setting.
+	 */
+	public static StrengthLevel fromDepth(int depth) {
+		StrengthLevel[] levels = values();
+		for (int i = 0; i < DEPTHS.length; i++) {
+			if (depth <= DEPTHS[i]) {
+				return levels[i];
+			}
+		}
+
+		return levels[levels.length - 1];
+	}
+}
@@ -1,38 +1,235 @@
 package org.empyrn.darkknight.engine;
 
+import android.annotation.SuppressLint;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import org.empyrn.darkknight.gamelogic.Move;
+import org.empyrn.darkknight.gamelogic.Position;
+import org.empyrn.darkknight.gamelogic.PositionSnapshot;
+import org.empyrn.darkknight.gamelogic.SanCache;
+import org.empyrn.darkknight.gamelogic.UndoInfo;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 /**
  * Created by nick on 3/6/16.
+ * <p/>
+ * The PVs are kept as packed moves, and only converted to moves and text when they are displayed.
  */
-public class ThinkingInfo implements Serializable {
+public class ThinkingInfo implements Serializable, Parcelable {
+	/** Score of the best variation, or 0 if there is none. */
 	public final int pvScore;
-	public final String pvStr;
 	public final String bookInfo;
-	public final List<Move> pvMoves;
 	public final List<Move> bookMoves;
 
-	public ThinkingInfo(int pvScore, String pvStr, String bookInfo, @Nullable List<Move> pvMoves,
+	/** Search statistics shown after the variations. */
+	private final String statsStr;
+	private final PositionSnapshot pvPos;
+	/** The variations found, best first. */
+	private final List<Variation> variations;
+
+	private transient String pvStr;
+
+	/**
+	 * One of the principal variations of a search, with the depth and score it was found with.
+	 */
+	public static final class Variation implements Serializable {
+		public final int depth;
+		public final int score;
+		public final boolean isMate;
+		public final boolean upperBound;
+		public final boolean lowerBound;
+		/** The PV in the form of {@link Move#toCompact()}. */
+		private final int[] pv;
+
+		private transient List<Move> moves;
+
+		/**
+		 * @param pv The PV in the form of {@link Move#toCompact()}, owned by the new instance
+		 */
+		public Variation(int depth, int score, boolean isMate, boolean upperBound,
+		                 boolean lowerBound, @NonNull int[] pv) {
+			this.depth = depth;
+			this.score = score;
+			this.isMate = isMate;
+			this.upperBound = upperBound;
+			this.lowerBound = lowerBound;
+			this.pv = pv;
+		}
+
+		@NonNull
+		public List<Move> getMoves() {
+			if (moves == null) {
+				ArrayList<Move> list = new ArrayList<>(pv.length);
+				for (int move : pv) {
+					list.add(Move.fromCompact(move));
+				}
+				moves = Collections.unmodifiableList(list);
+			}
+
+			return moves;
+		}
+
+		/**
+		 * Get the depth and score, formatted for display before the moves.
+		 */
+		@SuppressLint("DefaultLocale")
+		public String getHeader() {
+			StringBuilder buf = new StringBuilder();
+			buf.append(String.format("[%d] ", depth));
+			if (upperBound) {
+				buf.append("<=");
+			} else if (lowerBound) {
+				buf.append(">=");
+			}
+			if (isMate) {
+				buf.append(String.format("m%d", score));
+			} else {
+				buf.append(String.format("%.2f", score / 100.0));
+			}
+			return buf.toString();
+		}
+
+		private void writeToParcel(Parcel dest) {
+			dest.writeInt(depth);
+			dest.writeInt(score);
+			dest.writeInt((isMate ? 1 : 0) | (upperBound ? 2 : 0) | (lowerBound ? 4 : 0));
+			dest.writeIntArray(pv);
+		}
+
+		private static Variation readFromParcel(Parcel in) {
+			int depth = in.readInt();
+			int score = in.readInt();
+			int flags = in.readInt();
+			return new Variation(depth, score, (flags & 1) != 0, (flags & 2) != 0,
+					(flags & 4) != 0, in.createIntArray());
+		}
+	}
+
+	/**
+	 * @param pvPos      The position the variations start from, or null if there are none
+	 * @param variations The variations found, best first, owned by the new instance
+	 */
+	public ThinkingInfo(String statsStr, @Nullable PositionSnapshot pvPos,
+	                    @Nullable List<Variation> variations, String bookInfo,
 	                    @Nullable List<Move> bookMoves) {
-		this.pvScore = pvScore;
-		this.pvStr = pvStr;
+		this.statsStr = statsStr;
+		this.pvPos = variations == null || variations.isEmpty() ? null : pvPos;
+		this.variations = this.pvPos == null ? Collections.<Variation>emptyList()
+				: Collections.unmodifiableList(variations);
+		this.pvScore = this.variations.isEmpty() ? 0 : this.variations.get(0).score;
 		this.bookInfo = bookInfo;
-		this.pvMoves = pvMoves == null ? null : Collections.unmodifiableList(pvMoves);
 		this.bookMoves = bookMoves == null ? null : Collections.unmodifiableList(bookMoves);
 	}
 
+	protected ThinkingInfo(Parcel in) {
+		this(in.readString(),
+				in.<PositionSnapshot>readParcelable(PositionSnapshot.class.getClassLoader()),
+				readVariations(in), in.readString(), Move.readMoveList(in));
+	}
+
+	private static List<Variation> readVariations(Parcel in) {
+		int n = in.readInt();
+		List<Variation> variations = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			variations.add(Variation.readFromParcel(in));
+		}
+		return variations;
+	}
+
+	/**
+	 * Get the text to display: each variation's depth, score and moves in short algebraic
+	 * notation on a line of its own, followed by the search statistics. Formatted on first use.
+	 */
+	public String getPvStr() {
+		if (pvStr == null) {
+			StringBuilder buf = new StringBuilder();
+			Position pos = new Position();
+			UndoInfo ui = new UndoInfo();
+			for (Variation variation : variations) {
+				buf.append(variation.getHeader());
+				pos.set(pvPos);
+				List<Move> moves = variation.getMoves();
+				for (int i = 0; i < variation.pv.length; i++) {
+					buf.append(' ');
+					buf.append(SanCache.moveToString(pos, variation.pv[i]));
+					pos.makeMove(moves.get(i), ui);
+				}
+				buf.append('\n');
+			}
+
+			buf.append(statsStr);
+			pvStr = buf.toString();
+		}
+
+		return pvStr;
+	}
+
+	/**
+	 * @return The moves of the best variation, or null if there is none
+	 */
+	@Nullable
+	public List<Move> getPvMoves() {
+		return variations.isEmpty() ? null : variations.get(0).getMoves();
+	}
+
+	/**
+	 * @return The variations found, best first
+	 */
+	@NonNull
+	public List<Variation> getVariations() {
+		return variations;
+	}
+
+	/**
+	 * @return The position the variations start from, or null if there are none
+	 */
+	@Nullable
+	public PositionSnapshot getPvPosition() {
+		return pvPos;
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeString(statsStr);
+		dest.writeParcelable(pvPos, flags);
+		dest.writeInt(variations.size());
+		for (Variation variation : variations) {
+			variation.writeToParcel(dest);
+		}
+		dest.writeString(bookInfo);
+		Move.writeMoveList(dest, bookMoves);
+	}
+
+	public static final Creator<ThinkingInfo> CREATOR = new Creator<ThinkingInfo>() {
+		@Override
+		public ThinkingInfo createFromParcel(Parcel in) {
+			return new ThinkingInfo(in);
+		}
+
+		@Override
+		public ThinkingInfo[] newArray(int size) {
+			return new ThinkingInfo[size];
+		}
+	};
+
 	@Override
 	public String toString() {
 		return "ThinkingInfo{" +
-				"pvStr='" + pvStr + '\'' +
+				"pvStr='" + getPvStr() + '\'' +
 				", bookInfo='" + bookInfo + '\'' +
-				", pvMoves=" + pvMoves +
+				", pvMoves=" + getPvMoves() +
 				", bookMoves=" + bookMoves +
 				'}';
 	}
@@ -0,0 +1,127 @@
+package org.empyrn.darkknight.engine;
+
+import java.util.Locale;
+
+/**
+ * Turns the clocks of a timed game into the limits of one search. The engine's own time manager
+ * decides how long to think within the limits; the allocator leaves it a safety margin for the
+ * time commands and answers spend travelling to and from the engine, and computes a hard limit
+ * after which the search is stopped from outside, in case the engine overruns.
+ * <p/>
+ * The margin grows with the round-trip time measured on the engine's connection, so a slow
+ * pipe on a busy device doesn't lose games on time.
+ */
+final class TimeAllocator {
+	/** Margin kept even when the connection is fast. */
+	private static final int MIN_MARGIN_MILLIS = 30;
+
+	/** Shortest search allowed, however little time is left. */
+	private static final int MIN_SEARCH_MILLIS = 10;
+
+	/** Moves assumed to be left in the game when the time control doesn't say. */
+	private static final int DEFAULT_MOVES_TO_GO = 30;
+
+	/** Round-trip time, smoothed over measurements. */
+	private volatile int roundTripMillis = 0;
+
+	/**
+	 * Record a measured round trip to the engine and back.
+	 */
+	void addRoundTrip(long millis) {
+		int rtt = (int) Math.min(millis, Integer.MAX_VALUE);
+		int prev = roundTripMillis;
+		// weigh new measurements by 1/4, so one hiccup doesn't dominate
+		roundTripMillis = prev == 0 ? rtt : (3 * prev + rtt) / 4;
+	}
+
+	/**
+	 * Time kept in reserve on every move, on top of what the engine plans to use.
+	 */
+	int getMarginMillis() {
+		return MIN_MARGIN_MILLIS + 2 * roundTripMillis;
+	}
+
+	/**
+	 * Build the "go" command for a search.
+	 *
+	 * @param moveTime  Fixed time for the move, or 0 to use the clocks
+	 * @param wTime     Time left on white's clock, or 0 if the game is not timed
+	 * @param bTime     Time left on black's clock, or 0 if the game is not timed
+	 * @param inc       Increment per move
+	 * @param movesToGo Moves until the next time control, or 0 if the rest of the game
+	 * @param maxNodes  Number of nodes to search, or 0 for no limit. Ignored when the clocks are
+	 *                  used, since any depth or node limit turns the engine's time management
+	 *                  off and makes it ignore the clocks.
+	 */
+	String goCommand(boolean whiteMove, int moveTime, int wTime, int bTime, int inc,
+	                 int movesToGo, int maxNodes) {
+		StringBuilder cmd = new StringBuilder("go");
+		int margin = getMarginMillis();
+		boolean clocks = moveTime <= 0 && (whiteMove ? wTime : bTime) > 0;
+		if (moveTime > 0) {
+			cmd.append(" movetime ").append(Math.max(MIN_SEARCH_MILLIS, moveTime - margin));
+		} else if (clocks) {
+			// the engine only plans with the time it is told about
+			cmd.append(String.format(Locale.US, " wtime %d btime %d",
+					Math.max(MIN_SEARCH_MILLIS, whiteMove ? wTime - margin : wTime),
+					Math.max(MIN_SEARCH_MILLIS, whiteMove ? bTime : bTime - margin)));
+			if (inc > 0) {
+				cmd.append(String.format(Locale.US, " winc %d binc %d", inc, inc));
+			}
+			if (movesToGo > 0) {
+				cmd.append(" movestogo ").append(movesToGo);
+			}
+		}
+
+		if (maxNodes > 0 && !clocks) {
+			cmd.append(" nodes ").append(maxNodes);
+		}
+
+		return cmd.toString();
+	}
+
+	/**
+	 * Get the time a search using the clocks is expected to take, about what the engine's time
+	 * manager plans for a move in a quiet position.
+	 *
+	 * @return The time in milliseconds, or 0 if the game is not timed
+	 */
+	int targetMillis(boolean whiteMove, int wTime, int bTime, int inc, int movesToGo) {
+		int time = whiteMove ? wTime : bTime;
+		if (time <= 0) {
+			return 0;
+		}
+
+		int available = Math.max(0, time - getMarginMillis());
+		int movesLeft = movesToGo > 0 ? movesToGo : DEFAULT_MOVES_TO_GO;
+		return Math.max(MIN_SEARCH_MILLIS, available / movesLeft + inc * 3 / 4);
+	}
+
+	/**
+	 * Get the time after which the search must be stopped whatever the engine thinks, leaving
+	 * the margin for the best move to come back.
+	 *
+	 * @return The limit in milliseconds, or 0 if the search is not limited by time
+	 * @see #goCommand(boolean, int, int, int, int, int, int)
+	 */
+	int hardLimitMillis(boolean whiteMove, int moveTime, int wTime, int bTime, int inc,
+	                    int movesToGo) {
+		int margin = getMarginMillis();
+		if (moveTime > 0) {
+			return Math.max(MIN_SEARCH_MILLIS, moveTime - margin / 2);
+		}
+
+		int time = whiteMove ? wTime : bTime;
+		if (time <= 0) {
+			return 0;
+		}
+
+		int available = Math.max(0, time - margin);
+		int target = targetMillis(whiteMove, wTime, bTime, inc, movesToGo);
+
+		// the engine may extend its target in unstable positions; allow that, but never spend
+		// more than a third of the clock on one move
+		int limit = Math.min(5 * target, available / 3 + inc * 3 / 4);
+		return Math.max(MIN_SEARCH_MILLIS, Math.min(limit, available));
+	}
+}
@@ -0,0 +1,161 @@
+package org.empyrn.darkknight.engine;
+
+import org.empyrn.darkknight.gamelogic.Move;
+import org.empyrn.darkknight.gamelogic.Position;
+import org.empyrn.darkknight.gamelogic.TextIO;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a line of UCI output into whitespace separated tokens, working directly on the bytes of
+ * the line so that no strings are created for tokens that are only compared or converted to
+ * numbers and moves. One instance can be reused for any number of lines.
+ */
+final class UCITokenizer {
+	private ByteBuffer buf;
+	private int pos;
+	private int end;
+	private int tokenStart;
+	private int tokenEnd;
+
+	/**
+	 * Start tokenizing the bytes of buf from start (inclusive) to end (exclusive).
+	 */
+	void reset(ByteBuffer buf, int start, int end) {
+		this.buf = buf;
+		this.pos = start;
+		this.end = end;
+		tokenStart = tokenEnd = start;
+	}
+
+	/**
+	 * Advance to the next token.
+	 *
+	 * @return False if there are no more tokens on the line
+	 */
+	boolean next() {
+		while (pos < end && isSpace(buf.get(pos))) {
+			pos++;
+		}
+
+		if (pos >= end) {
+			tokenStart = tokenEnd = end;
+			return false;
+		}
+
+		tokenStart = pos;
+		while (pos < end && !isSpace(buf.get(pos))) {
+			pos++;
+		}
+
+		tokenEnd = pos;
+		return true;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	/**
+	 * Check whether the current token is the given ASCII string.
+	 */
+	boolean is(String s) {
+		int len = s.length();
+		if (tokenEnd - tokenStart != len) {
+			return false;
+		}
+
+		for (int i = 0; i < len; i++) {
+			if (buf.get(tokenStart + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Parse the current token as a decimal integer.
+	 *
+	 * @throws NumberFormatException If the token is not a number
+	 */
+	int intValue() {
+		int i = tokenStart;
+		boolean negative = false;
+		if (i < tokenEnd && buf.get(i) == '-') {
+			negative = true;
+			i++;
+		}
+
+		if (i >= tokenEnd) {
+			throw new NumberFormatException("Not a number: " + stringValue());
+		}
+
+		long value = 0;
+		for (; i < tokenEnd; i++) {
+			int digit = buf.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Not a number: " + stringValue());
+			}
+
+			value = value * 10 + digit;
+		}
+
+		if (negative) {
+			value = -value;
+		}
+
+		// clamp rather than wrap, node counts of long searches can exceed an int
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+	}
+
+	/**
+	 * Parse the current token as a move in UCI format.
+	 *
+	 * @return The move, or null if the token is not a valid UCI move
+	 */
+	Move moveValue() {
+		int compact = compactMoveValue();
+		return compact < 0 ? null : Move.fromCompact(compact);
+	}
+
+	/**
+	 * Parse the current token as a move in UCI format, without creating a move object.
+	 *
+	 * @return The move in the form of {@link Move#toCompact()}, or -1 if the token is not a valid
+	 *         UCI move
+	 */
+	int compactMoveValue() {
+		int len = tokenEnd - tokenStart;
+		if (len < 4 || len > 5) {
+			return -1;
+		}
+
+		int fromSq = square(tokenStart);
+		int toSq = square(tokenStart + 2);
+		char prom = len == 5 ? (char) buf.get(tokenStart + 4) : ' ';
+		return TextIO.UCIsquaresToCompactMove(fromSq, toSq, prom);
+	}
+
+	private int square(int i) {
+		int x = buf.get(i) - 'a';
+		int y = buf.get(i + 1) - '1';
+		if ((x < 0) || (x > 7) || (y < 0) || (y > 7)) {
+			return -1;
+		}
+
+		return Position.getSquare(x, y);
+	}
+
+	/**
+	 * Get the current token as a string.
+	 */
+	String stringValue() {
+		StringBuilder sb = new StringBuilder(tokenEnd - tokenStart);
+		for (int i = tokenStart; i < tokenEnd; i++) {
+			sb.append((char) buf.get(i));
+		}
+
+		return sb.toString();
+	}
+}
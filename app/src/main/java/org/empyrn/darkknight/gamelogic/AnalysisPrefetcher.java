@@ -0,0 +1,196 @@
+package org.empyrn.darkknight.gamelogic;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.empyrn.darkknight.BuildConfig;
+import org.empyrn.darkknight.engine.AnalysisCache;
+import org.empyrn.darkknight.engine.EnginePlayer;
+import org.empyrn.darkknight.engine.EnginePool;
+import org.empyrn.darkknight.engine.EngineResources;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Analyzes the positions the user is likely to step to next while a game is reviewed: the next
+ * few plies of the main line, and the variations that branch off at the current position. The
+ * results go to the {@link AnalysisCache}, which the analysis view reads first, so stepping
+ * through a game shows deep evaluations at once instead of starting from scratch.
+ * <p/>
+ * The searches run on an engine session leased from the {@link EnginePool} with a single search
+ * thread at background priority, so the engine only gets CPU time the analysis of the current
+ * position on the game's engine leaves over. The work is bounded by nodes rather than time,
+ * which would keep running out while the engine waits for the CPU: every position gets a node
+ * budget, and the prefetch as a whole a total it stops at. A prefetch is for one position of the
+ * game; it is cancelled as soon as the user moves on.
+ */
+final class AnalysisPrefetcher {
+	/** Depth positions are searched to; positions already analyzed this deep are skipped. */
+	private static final int DEPTH = 14;
+
+	/** Number of nodes searched at most in each position. */
+	private static final int NODES_PER_POSITION = 300000;
+
+	/** Number of nodes searched at most in all positions together. */
+	private static final int TOTAL_NODES = 1500000;
+
+	/** Number of plies of the main line searched ahead of the current position. */
+	private static final int MAX_MAIN_LINE_PLIES = 4;
+
+	/** Number of variations at the current position searched besides the main line. */
+	private static final int MAX_VARIATIONS = 3;
+
+	/** Moves from {@link #prevPos} to each position to search, most likely positions first. */
+	private final List<ArrayList<Move>> moveLists = new ArrayList<>();
+	private final List<PositionSnapshot> positions = new ArrayList<>();
+	private final PositionSnapshot prevPos;
+
+	private volatile boolean cancelled = false;
+	/** The leased session while the searches run. Guarded by this. */
+	private EnginePlayer session;
+	private Thread thread;
+
+	/**
+	 * Collect the positions that follow the current position of a game. Must be called on the
+	 * main thread.
+	 */
+	AnalysisPrefetcher(@NonNull Game game) {
+		Pair<PositionSnapshot, ArrayList<Move>> ph = game.getUCIHistory();
+		prevPos = ph.first;
+		ArrayList<Move> history = ph.second;
+		GameTree tree = game.getTree();
+		Position currPos = new Position(tree.currentPos);
+
+		Pair<List<GameTree.Node>, Integer> ml = tree.getMoveList();
+		List<GameTree.Node> mainLine = ml.first.subList(ml.second, ml.first.size());
+
+		// the next move of the main line comes first, then the moves that could be played instead
+		List<Move> firstMoves = new ArrayList<>();
+		if (!mainLine.isEmpty()) {
+			firstMoves.add(mainLine.get(0).move);
+		}
+		for (Move m : tree.variations()) {
+			if (firstMoves.size() > MAX_VARIATIONS) {
+				break;
+			} else if (!firstMoves.contains(m)) {
+				firstMoves.add(m);
+			}
+		}
+
+		for (Move m : firstMoves) {
+			addPosition(history, currPos, m);
+		}
+
+		// then the main line further ahead
+		Position pos = new Position(currPos);
+		ArrayList<Move> moves = new ArrayList<>(history);
+		UndoInfo ui = new UndoInfo();
+		int plies = Math.min(mainLine.size(), MAX_MAIN_LINE_PLIES);
+		for (int i = 0; i + 1 < plies; i++) {
+			Move m = mainLine.get(i).move;
+			pos.makeMove(m, ui);
+			TextIO.fixupEPSquare(pos);
+			moves.add(m);
+			addPosition(moves, pos, mainLine.get(i + 1).move);
+		}
+	}
+
+	private void addPosition(List<Move> history, Position pos, Move move) {
+		Position next = new Position(pos);
+		next.makeMove(move, new UndoInfo());
+		TextIO.fixupEPSquare(next);
+
+		ArrayList<Move> moves = new ArrayList<>(history);
+		moves.add(move);
+		moveLists.add(moves);
+		positions.add(next.snapshot());
+	}
+
+	/**
+	 * Start searching on a background thread, unless there is nothing to search or no cache to
+	 * keep the results in.
+	 */
+	synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("Prefetch already started");
+		} else if (positions.isEmpty() || AnalysisCache.getInstance() == null) {
+			return;
+		}
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				prefetch();
+			}
+		}, "AnalysisPrefetcher");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Stop prefetching. Doesn't wait for the engine; the search in progress is asked to stop and
+	 * the session is given back to the pool once it has.
+	 */
+	void cancel() {
+		cancelled = true;
+		synchronized (this) {
+			if (session != null) {
+				session.requestStop();
+			}
+		}
+	}
+
+	private void prefetch() {
+		EnginePool pool = EnginePool.getInstance();
+		EnginePlayer player;
+		try {
+			player = pool.lease(EngineResources.getHashMB(), 1, true);
+		} catch (InterruptedException e) {
+			return;
+		} catch (RuntimeException e) {
+			Log.e(getClass().getSimpleName(), "Could not start engine for prefetch", e);
+			return;
+		}
+
+		synchronized (this) {
+			// a stop asked for from here on is for this prefetch
+			player.clearStopRequest();
+			session = player;
+		}
+
+		try {
+			AnalysisCache cache = AnalysisCache.getInstance();
+			int nodesLeft = TOTAL_NODES;
+			for (int i = 0; i < positions.size() && nodesLeft > 0 && !cancelled; i++) {
+				AnalysisCache.Entry cached = cache.get(positions.get(i));
+				if (cached != null && cached.depth >= DEPTH) {
+					continue;
+				}
+
+				// the limit is what the search may cost, even if it reaches the depth sooner
+				int nodes = Math.min(NODES_PER_POSITION, nodesLeft);
+				nodesLeft -= nodes;
+				AnalysisCache.Entry entry = player.evaluate(prevPos, moveLists.get(i),
+						positions.get(i), DEPTH, nodes);
+				if (BuildConfig.DEBUG && entry != null) {
+					Log.i(getClass().getSimpleName(), "Prefetched " + positions.get(i).getFEN()
+							+ " to depth " + entry.depth);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped along with the app
+		} catch (RuntimeException e) {
+			Log.e(getClass().getSimpleName(), "Prefetch failed", e);
+		} finally {
+			synchronized (this) {
+				session = null;
+			}
+
+			// a stop that came too late must not stop the next lessee's first search
+			player.clearStopRequest();
+			pool.release(player);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package org.empyrn.darkknight.gamelogic;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+/**
+ * Starts analysis once navigation through a game has settled. Every navigation step restarts the
+ * wait, so stepping quickly through a game starts one search, for the position the user stops
+ * at, instead of one per position passed. Used on the main thread only.
+ */
+final class AnalysisScheduler {
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Runnable startAnalysis;
+	private boolean pending = false;
+
+	private final Runnable fire = new Runnable() {
+		@Override
+		public void run() {
+			pending = false;
+			startAnalysis.run();
+		}
+	};
+
+	/**
+	 * @param startAnalysis Starts the analysis of the current position
+	 */
+	AnalysisScheduler(@NonNull Runnable startAnalysis) {
+		this.startAnalysis = startAnalysis;
+	}
+
+	/**
+	 * Start the analysis after a quiet period, unless this is called again before it is over.
+	 */
+	void schedule(int delayMillis) {
+		handler.removeCallbacks(fire);
+		pending = true;
+		handler.postDelayed(fire, delayMillis);
+	}
+
+	/**
+	 * Drop the analysis scheduled, if any.
+	 */
+	void cancel() {
+		if (pending) {
+			handler.removeCallbacks(fire);
+			pending = false;
+		}
+	}
+
+	/**
+	 * @return True if analysis is waiting for navigation to settle
+	 */
+	boolean isPending() {
+		return pending;
+	}
+}
@@ -3,22 +3,30 @@ package org.empyrn.darkknight.gamelogic;
 import android.annotation.SuppressLint;
 import android.os.AsyncTask;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.view.Choreographer;
 
 import org.empyrn.darkknight.BuildConfig;
 import org.empyrn.darkknight.DarkKnightActivity;
 import org.empyrn.darkknight.GUIInterface;
 import org.empyrn.darkknight.GameMode;
+import org.empyrn.darkknight.engine.AnalysisCache;
 import org.empyrn.darkknight.engine.EnginePlayer;
+import org.empyrn.darkknight.engine.EnginePool;
+import org.empyrn.darkknight.engine.StrengthLevel;
 import org.empyrn.darkknight.engine.ThinkingInfo;
 import org.empyrn.darkknight.gamelogic.Game.Status;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -35,14 +43,47 @@ public class EngineController extends AbstractGameController implements GameCont
 	@Nullable
 	private	Game game;
 
+	/** Runs the searches of the game's engine, one at a time. */
+	private final EngineSession engineSession = new EngineSession();
+
 	private ComputerMoveSelectionThread computerThread;
 	private AnalysisThread analysisThread;
 
+	/** Quiet time after navigating through the game before the new position is analyzed. */
+	private static final int NAVIGATION_ANALYSIS_DELAY_MILLIS = 300;
+	/** Quiet time after a move is played before the new position is analyzed. */
+	private static final int MOVE_ANALYSIS_DELAY_MILLIS = 100;
+
+	private final AnalysisScheduler analysisScheduler = new AnalysisScheduler(new Runnable() {
+		@Override
+		public void run() {
+			startAnalysis();
+		}
+	});
+
+	/**
+	 * Search on the player's time, on the reply the engine expects, or null if not pondering.
+	 * Becomes the {@link #computerThread} if the player makes the expected move.
+	 */
+	private ComputerMoveSelectionThread ponderThread;
+	/** The reply the engine expected to the move it just played. */
+	private Move expectedReply;
+	private volatile boolean ponderEnabled = false;
+
+	/** Annotation of the game's main line running in the background, or null. */
+	private GameAnnotator annotator;
+
+	/** Analysis of the positions likely to come next in analysis mode, or null. */
+	private AnalysisPrefetcher prefetcher;
+
 	private int timeControl;
 	private int movesPerSession;
 	private int timeIncrement;
 
-	private int maxDepth;
+	private volatile StrengthLevel strengthLevel = StrengthLevel.DEFAULT;
+	private int moveTime;
+	private int thinkingUpdateIntervalMillis = 0;
+	private int analysisLines = 1;
 
 	private static EngineController instance;
 
@@ -55,10 +96,8 @@ public class EngineController extends AbstractGameController implements GameCont
 
 	/**
 	 * Get the {@link EngineController} singleton instance.
-	 *
-	 * @throws UnsatisfiedLinkError if the native platform isn't supported
 	 */
-	public static EngineController getInstance() throws UnsatisfiedLinkError {
+	public static EngineController getInstance() {
 		if (instance == null) {
 			instance = new EngineController();
 		}
@@ -67,7 +106,13 @@ public class EngineController extends AbstractGameController implements GameCont
 	}
 
 	private EngineController() {
-		EnginePlayer.getInstance().setBookFileName(bookFileName);
+		// the engine may still be booting; only the session's thread waits for it
+		engineSession.post(new Runnable() {
+			@Override
+			public void run() {
+				EnginePlayer.getInstance().setBookFileName(bookFileName);
+			}
+		});
 	}
 
 	@Nullable
@@ -76,128 +121,267 @@ public class EngineController extends AbstractGameController implements GameCont
 		return game;
 	}
 
+	/**
+	 * Collects search info reported on the search thread and publishes it to the GUI on the main
+	 * thread, at most once per display frame. Only the latest value of each field is kept, so a
+	 * burst of updates within one frame costs one publication. The PVs are passed on as packed
+	 * moves, and only formatted when they are displayed.
+	 * <p/>
+	 * A search for several variations reports each of them by rank; the latest report of every
+	 * rank is kept, so all variations are published together.
+	 */
 	abstract static class EngineControllerSearchListener implements SearchListener {
+		private final Handler mainHandler = new Handler(Looper.getMainLooper());
+		private final int minUpdateIntervalMillis;
+
+		// written on the search thread, read when publishing; guarded by this
 		private int currDepth = 0;
 		private int currMoveNr = 0;
-		private String currMove = "";
+		private int currMove = 0;
+		private PositionSnapshot currMovePos = null;
 		private int currNodes = 0;
 		private int currNps = 0;
 		private int currTime = 0;
 
-		private int pvDepth = 0;
-		private int pvScore = 0;
-		private boolean pvIsMate = false;
-		private boolean pvUpperBound = false;
-		private boolean pvLowerBound = false;
+		/** The latest report of each variation, indexed by rank - 1. */
+		private final ArrayList<PVLine> pvLines = new ArrayList<>();
+		private int numPVLines = 0;
+		private PositionSnapshot pvPos = null;
 		private String bookInfo = "";
-		private String pvStr = "";
-		private List<Move> pvMoves = null;
 		private List<Move> bookMoves = null;
+		private boolean updatePending = false;
 
-		public final void clearSearchInfo() {
-			pvDepth = 0;
+		// written only on the main thread
+		private volatile long lastUpdateTime = 0;
+		private boolean closed = false;
+		private final Position tmpPos = new Position();
+
+		private final Runnable scheduleFrame = new Runnable() {
+			@Override
+			public void run() {
+				Choreographer.getInstance().postFrameCallback(frameCallback);
+			}
+		};
+
+		private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+			@Override
+			public void doFrame(long frameTimeNanos) {
+				publish();
+			}
+		};
+
+		/**
+		 * @param minUpdateIntervalMillis Minimum time between two publications, or 0 to publish
+		 *                                once per display frame
+		 */
+		EngineControllerSearchListener(int minUpdateIntervalMillis) {
+			this.minUpdateIntervalMillis = minUpdateIntervalMillis;
+			clearSearchInfo();
+		}
+
+		public final synchronized void clearSearchInfo() {
 			currDepth = 0;
 			bookInfo = "";
-			pvMoves = null;
+			numPVLines = 0;
+			pvPos = null;
 			bookMoves = null;
-			setSearchInfo();
+			invalidate();
 		}
 
-		EngineControllerSearchListener() {
-			clearSearchInfo();
+		/**
+		 * Stop publishing. Must be called on the main thread.
+		 */
+		final void close() {
+			closed = true;
+			mainHandler.removeCallbacks(scheduleFrame);
+			Choreographer.getInstance().removeFrameCallback(frameCallback);
+		}
+
+		/**
+		 * Schedule a publication, unless one is already pending. Called with the lock held.
+		 */
+		private void invalidate() {
+			if (updatePending) {
+				return;
+			}
+
+			updatePending = true;
+			mainHandler.postAtTime(scheduleFrame, lastUpdateTime + minUpdateIntervalMillis);
 		}
 
 		@SuppressLint("DefaultLocale")
-		private void setSearchInfo() {
-			StringBuilder buf = new StringBuilder();
-			if (pvDepth > 0) {
-				buf.append(String.format("[%d] ", pvDepth));
-				if (pvUpperBound) {
-					buf.append("<=");
-				} else if (pvLowerBound) {
-					buf.append(">=");
+		private void publish() {
+			if (closed) {
+				return;
+			}
+
+			lastUpdateTime = SystemClock.uptimeMillis();
+
+			final ThinkingInfo info;
+			synchronized (this) {
+				updatePending = false;
+
+				List<ThinkingInfo.Variation> variations = null;
+				if (pvPos != null) {
+					variations = new ArrayList<>(numPVLines);
+					for (int i = 0; i < numPVLines; i++) {
+						PVLine line = pvLines.get(i);
+						if (line.depth > 0) {
+							variations.add(new ThinkingInfo.Variation(line.depth, line.score,
+									line.isMate, line.upperBound, line.lowerBound,
+									Arrays.copyOf(line.pv, line.pvLength)));
+						}
+					}
 				}
-				if (pvIsMate) {
-					buf.append(String.format("m%d", pvScore));
-				} else {
-					buf.append(String.format("%.2f", pvScore / 100.0));
+
+				String statsStr = "";
+				if (currDepth > 0) {
+					String currMoveStr = "";
+					if (currMovePos != null) {
+						tmpPos.set(currMovePos);
+						currMoveStr = SanCache.moveToString(tmpPos, currMove);
+					}
+
+					statsStr = String.format("d:%d %d:%s t:%.2f n:%d nps:%d",
+							currDepth, currMoveNr, currMoveStr, currTime / 1000.0,
+							currNodes, currNps);
 				}
-				buf.append(pvStr);
-				buf.append("\n");
-			}
 
-			if (currDepth > 0) {
-				buf.append(String.format("d:%d %d:%s t:%.2f n:%d nps:%d",
-						currDepth, currMoveNr, currMove, currTime / 1000.0,
-						currNodes, currNps));
+				// the PVs are only formatted if and when they are displayed
+				info = new ThinkingInfo(statsStr, pvPos, variations, bookInfo, bookMoves);
 			}
 
-			final String newPV = buf.toString();
-			final String newBookInfo = bookInfo;
-
-			ThinkingInfo newThinkingInfo = new ThinkingInfo(pvScore, newPV, newBookInfo, pvMoves, bookMoves);
-			onThinkingInfoChanged(newThinkingInfo);
+			onThinkingInfoChanged(info);
 		}
 
+		/**
+		 * Called on the main thread with the latest search info.
+		 */
 		protected abstract void onThinkingInfoChanged(ThinkingInfo thinkingInfo);
 
 		@Override
-		public void notifyDepth(int depth) {
+		public synchronized void notifyDepth(int depth) {
 			currDepth = depth;
-			setSearchInfo();
+			invalidate();
 		}
 
 		@Override
-		public void notifyCurrMove(Position pos, Move m, int moveNr) {
-			currMove = TextIO.moveToString(pos, m, false);
+		public synchronized void notifyCurrMove(PositionSnapshot pos, int move, int moveNr) {
+			currMovePos = pos;
+			currMove = move;
 			currMoveNr = moveNr;
-			setSearchInfo();
+			invalidate();
 		}
 
 		@Override
-		public void notifyPV(Position pos, int depth, int score, int time,
-		                     int nodes, int nps, boolean isMate, boolean upperBound,
-		                     boolean lowerBound, ArrayList<Move> pv) {
-			pvDepth = depth;
-			pvScore = score;
+		public synchronized void notifyPV(PositionSnapshot pos, int multiPV, int depth, int score,
+		                                  int time, int nodes, int nps, boolean isMate,
+		                                  boolean upperBound, boolean lowerBound, int[] pv,
+		                                  int pvLength) {
 			currTime = time;
 			currNodes = nodes;
 			currNps = nps;
-			pvIsMate = isMate;
-			pvUpperBound = upperBound;
-			pvLowerBound = lowerBound;
-
-			StringBuilder buf = new StringBuilder();
-			Position tmpPos = new Position(pos);
-			UndoInfo ui = new UndoInfo();
-			for (Move m : pv) {
-				buf.append(String.format(" %s",
-						TextIO.moveToString(tmpPos, m, false)));
-				tmpPos.makeMove(m, ui);
+
+			int index = Math.max(0, multiPV - 1);
+			while (pvLines.size() <= index) {
+				pvLines.add(new PVLine());
 			}
-			pvStr = buf.toString();
-			pvMoves = pv;
-			setSearchInfo();
+			for (int i = numPVLines; i < index; i++) {
+				// ranks skipped so far stay empty until reported
+				pvLines.get(i).depth = 0;
+			}
+			numPVLines = Math.max(numPVLines, index + 1);
+
+			PVLine line = pvLines.get(index);
+			line.depth = depth;
+			line.score = score;
+			line.isMate = isMate;
+			line.upperBound = upperBound;
+			line.lowerBound = lowerBound;
+			if (line.pv.length < pvLength) {
+				line.pv = new int[pvLength];
+			}
+			System.arraycopy(pv, 0, line.pv, 0, pvLength);
+			line.pvLength = pvLength;
+			pvPos = pos;
+			invalidate();
 		}
 
 		@Override
-		public void notifyStats(int nodes, int nps, int time) {
+		public synchronized void notifyStats(int nodes, int nps, int time) {
 			currNodes = nodes;
 			currNps = nps;
 			currTime = time;
-			setSearchInfo();
+			invalidate();
 		}
 
 		@Override
-		public void notifyBookInfo(String bookInfo, List<Move> moveList) {
+		public synchronized void notifyBookInfo(String bookInfo, List<Move> moveList) {
 			this.bookInfo = bookInfo;
 			bookMoves = moveList;
-			setSearchInfo();
+			invalidate();
+		}
+
+		/**
+		 * The latest report of one variation, reused for the next report of the same rank.
+		 */
+		private static final class PVLine {
+			int depth;
+			int score;
+			boolean isMate;
+			boolean upperBound;
+			boolean lowerBound;
+			int[] pv = new int[0];
+			int pvLength;
 		}
 	}
 
-	public void setMaxDepth(int maxDepth) {
-		this.maxDepth = maxDepth;
+	/**
+	 * Set the strength the engine plays at. Takes effect from the engine's next move.
+	 */
+	public void setStrengthLevel(@NonNull StrengthLevel level) {
+		this.strengthLevel = level;
+	}
+
+	/**
+	 * Set the clocks of new games: "moves" moves in "time" milliseconds, plus "inc" milliseconds
+	 * per move. A time of 0 means the game is not timed. Takes effect for the next game.
+	 */
+	public void setTimeControl(int time, int moves, int inc) {
+		this.timeControl = time;
+		this.movesPerSession = moves;
+		this.timeIncrement = inc;
+	}
+
+	/**
+	 * Make the engine think a fixed time on every move, or go by the clocks if 0.
+	 */
+	public void setMoveTime(int millis) {
+		this.moveTime = millis;
+	}
+
+	/**
+	 * Let the engine think on the player's time, on the reply it expects. Takes effect after the
+	 * engine's next move.
+	 */
+	public void setPondering(boolean enabled) {
+		this.ponderEnabled = enabled;
+	}
+
+	/**
+	 * Set the number of best variations shown in analysis mode. Takes effect for the next
+	 * analysis.
+	 */
+	public void setAnalysisLines(int lines) {
+		this.analysisLines = Math.max(1, lines);
+	}
+
+	/**
+	 * Set the minimum time between two updates of the search info shown while the engine is
+	 * thinking, or 0 to update once per display frame. Takes effect for the next search.
+	 */
+	public void setThinkingUpdateInterval(int millis) {
+		this.thinkingUpdateIntervalMillis = millis;
 	}
 
 	public String getBookFileName() {
@@ -225,9 +409,14 @@ public class EngineController extends AbstractGameController implements GameCont
 		boolean analysis = (gameMode == GameMode.ANALYSIS);
 		if (!analysis && isPlayerTurn()) {
 			//ss = new SearchStatus();
-			Pair<String, ArrayList<Move>> bi = EnginePlayer.getInstance()
-					.getBookHints(game.currPos());
-			//getSearchListener().notifyBookInfo(bi.first, bi.second);
+			final Position pos = new Position(game.currPos());
+			engineSession.post(new Runnable() {
+				@Override
+				public void run() {
+					Pair<String, ArrayList<Move>> bi = EnginePlayer.getInstance().getBookHints(pos);
+					//getSearchListener().notifyBookInfo(bi.first, bi.second);
+				}
+			});
 		}
 	}
 
@@ -271,7 +460,8 @@ public class EngineController extends AbstractGameController implements GameCont
 		}
 
 		isGameResumed = false;
-		EnginePlayer.getInstance().clearTT();
+		cancelAnnotation();
+		clearEngineTT();
 
 		setPlayerNames(game);
 
@@ -460,13 +650,12 @@ public class EngineController extends AbstractGameController implements GameCont
 		stopAnalysis();
 
 		// once the analysis was stopped, prepare the engine to play again
-		new AsyncTask<Void, Void, Void>() {
+		engineSession.post(new Runnable() {
 			@Override
-			protected Void doInBackground(Void... params) {
+			public void run() {
 				EnginePlayer.prepareInstance();
-				return null;
 			}
-		}.execute();
+		});
 	}
 
 	private static String getFullBookFileName(String bookFile) {
@@ -480,13 +669,27 @@ public class EngineController extends AbstractGameController implements GameCont
 		return bookFile;
 	}
 
-	private void setPlayerNames(Game game) {
-		if (gameMode != null && game != null) {
-			String engine = EnginePlayer.getInstance().getEngineName();
-			String white = gameMode.playerWhite() ? "Player" : engine;
-			String black = gameMode.playerBlack() ? "Player" : engine;
-			game.getTree().setPlayerNames(white, black);
+	private void setPlayerNames(final Game game) {
+		if (gameMode == null || game == null) {
+			return;
 		}
+
+		// the engine's name is known once it has started, which the main thread doesn't wait for
+		final GameMode mode = gameMode;
+		engineSession.post(new Runnable() {
+			@Override
+			public void run() {
+				final String engine = EnginePlayer.getInstance().getEngineName();
+				postEvent(new Runnable() {
+					@Override
+					public void run() {
+						String white = mode.playerWhite() ? "Player" : engine;
+						String black = mode.playerBlack() ? "Player" : engine;
+						game.getTree().setPlayerNames(white, black);
+					}
+				});
+			}
+		});
 	}
 
 	@Override
@@ -553,12 +756,25 @@ public class EngineController extends AbstractGameController implements GameCont
 			}
 		}
 
+		cancelAnnotation();
 		game = newGame;
 
 		updateGamePaused();
 		stopAnalysis();
 		stopComputerThinking();
-		EnginePlayer.getInstance().clearTT();
+		clearEngineTT();
+	}
+
+	/**
+	 * Clear the engine's hash table once the searches queued so far are done with it.
+	 */
+	private void clearEngineTT() {
+		engineSession.post(new Runnable() {
+			@Override
+			public void run() {
+				EnginePlayer.getInstance().clearTT();
+			}
+		});
 	}
 
 	private void undoMoveNoUpdate() {
@@ -597,10 +813,10 @@ public class EngineController extends AbstractGameController implements GameCont
 		guiInterface.onThinkingInfoChanged(null);
 		guiInterface.onMoveUnmade(lastMove);
 
-		stopAnalysis();
 		if (getGameMode() == GameMode.ANALYSIS) {
-			startAnalysisDelayed(300);
+			scheduleAnalysis(NAVIGATION_ANALYSIS_DELAY_MILLIS);
 		} else {
+			stopAnalysis();
 			resetComputerInstanceAsync();
 		}
 	}
@@ -631,75 +847,77 @@ public class EngineController extends AbstractGameController implements GameCont
 		guiInterface.onThinkingInfoChanged(null);
 		guiInterface.onMoveRemade(game.getLastMove());
 
-		stopAnalysis();
 		if (getGameMode() == GameMode.ANALYSIS) {
-			startAnalysisDelayed(300);
+			scheduleAnalysis(NAVIGATION_ANALYSIS_DELAY_MILLIS);
 		} else {
+			stopAnalysis();
 			resetComputerInstanceAsync();
 		}
 	}
 
 	/**
-	 * Start analysis thread, but with a delay. This is important to prevent massive CPU overuse
-	 * when button-mashing for going forward and backward in the game tree.
+	 * Analyze the current position once navigation has settled. This is important to prevent
+	 * massive CPU overuse when button-mashing for going forward and backward in the game tree.
+	 * The analysis of the previous position is cancelled without waiting for it, and what
+	 * earlier analysis found for the new position is shown in the meantime.
 	 */
-	private void startAnalysisDelayed(final int delay) {
-		mDelayedStartAnalysisTask = new AsyncTask<Void, Void, Void>() {
-			private boolean canStartAnalysis = true;
-
-			@Override
-			protected Void doInBackground(Void... params) {
-				try {
-					Thread.sleep(delay);
-				} catch (InterruptedException e) {
-					canStartAnalysis = false;
-				}
-
-				return null;
-			}
+	private void scheduleAnalysis(int delayMillis) {
+		cancelPrefetch();
+		retireAnalysis();
+		showCachedAnalysis();
+		analysisScheduler.schedule(delayMillis);
+	}
 
-			@Override
-			protected void onPostExecute(Void aVoid) {
-				if (canStartAnalysis && !isCancelled()) {
-					mDelayedStartAnalysisTask = null;
-					startAnalysis();
-				}
-			}
-		};
+	/**
+	 * Cancel the running analysis without waiting for it, keeping its search info on display
+	 * until there is something newer. The next analysis starts once it is done.
+	 */
+	private synchronized void retireAnalysis() {
+		if (analysisThread == null) {
+			return;
+		}
 
-		mDelayedStartAnalysisTask.execute();
+		engineSession.cancel(analysisThread);
+		analysisThread = null;
 	}
 
-	private void cancelStartAnalysisDelayed() {
-		if (mDelayedStartAnalysisTask != null) {
-			mDelayedStartAnalysisTask.cancel(true);
-			mDelayedStartAnalysisTask = null;
+	/**
+	 * Show the analysis of the current position found earlier, if any, until a search catches up.
+	 */
+	private void showCachedAnalysis() {
+		AnalysisCache cache = AnalysisCache.getInstance();
+		if (cache == null || game == null) {
+			return;
+		}
+
+		PositionSnapshot pos = game.currPos().snapshot();
+		AnalysisCache.Entry entry = cache.get(pos);
+		if (entry != null) {
+			ThinkingInfo.Variation variation = new ThinkingInfo.Variation(entry.depth,
+					entry.score, entry.isMate, entry.upperBound, entry.lowerBound, entry.pv);
+			getGui().onThinkingInfoChanged(new ThinkingInfo("", pos,
+					Collections.singletonList(variation), null, null));
 		}
 	}
 
-	private AsyncTask<Void, Void, Void> mDelayedStartAnalysisTask;
-
 	private void resetComputerInstanceAsync() {
-		new AsyncTask<Void, Void, Void>() {
-			@Override
-			protected Void doInBackground(Void... params) {
-				stopAnalysis();
-				stopComputerThinking();
-				EnginePlayer.prepareInstance();
-				return null;
-			}
-
-			@Override
-			protected void onPreExecute() {
-				GUIInterface guiInterface = getGui();
-				guiInterface.onThinkingInfoChanged(null);
-			}
+		stopAnalysis();
+		stopComputerThinking();
+		getGui().onThinkingInfoChanged(null);
 
+		// the engine is started, if need be, after the stopped searches are done with it
+		engineSession.post(new Runnable() {
 			@Override
-			protected void onPostExecute(Void aVoid) {
-				updateComputeThreads(true);
+			public void run() {
+				EnginePlayer.prepareInstance();
+				postEvent(new Runnable() {
+					@Override
+					public void run() {
+						updateComputeThreads(true);
+					}
+				});
 			}
-		}.execute();
+		});
 	}
 
 	public final int numVariations() {
@@ -716,12 +934,18 @@ public class EngineController extends AbstractGameController implements GameCont
 				isAnalysisQuickPause = true;
 			}
 
-			stopAnalysis();
-			stopComputerThinking();
+			if (getGameMode() == GameMode.ANALYSIS) {
+				retireAnalysis();
+			} else {
+				stopAnalysis();
+			}
+			if (!tryPonderHit()) {
+				stopComputerThinking();
+			}
 			onMoveMade();
 
 			if (getGameMode() == GameMode.ANALYSIS) {
-				startAnalysisDelayed(100);
+				scheduleAnalysis(MOVE_ANALYSIS_DELAY_MILLIS);
 				isAnalysisQuickPause = false;
 			} else {
 				updateComputeThreads(true);
@@ -816,19 +1040,87 @@ public class EngineController extends AbstractGameController implements GameCont
 		}
 
 		//ss = new SearchStatus();
-		final Pair<Position, ArrayList<Move>> ph = game.getUCIHistory();
+		final Pair<PositionSnapshot, ArrayList<Move>> ph = game.getUCIHistory();
 		final Game g = game;
 		final boolean haveDrawOffer = g.haveDrawOffer();
-		final Position currPos = new Position(g.currPos());
+		final PositionSnapshot currPos = g.currPos().snapshot();
+
+		computerThread = newComputerThread(ph, currPos, haveDrawOffer, false);
+		engineSession.execute(computerThread);
+	}
+
+	/**
+	 * Create a search for the side of the engine, with the engine's clock as it is now.
+	 */
+	private ComputerMoveSelectionThread newComputerThread(Pair<PositionSnapshot, ArrayList<Move>> ph,
+	                                                      PositionSnapshot currPos,
+	                                                      boolean haveDrawOffer, boolean ponder) {
 		long now = System.currentTimeMillis();
-		//final int wTime = game.getTimeController().getRemainingTime(true, now);
-		//final int bTime = game.getTimeController().getRemainingTime(false, now);
-		final int inc = game.getTimeController().getIncrement();
-		final int movesToGo = game.getTimeController().getMovesToTC();
+		final TimeControl tc = game.getTimeController();
+		final int wTime;
+		final int bTime;
+		if (tc.getInitialTime() > 0) {
+			// a flagged side still gets a minimal search rather than an untimed one
+			wTime = Math.max(1, tc.getRemainingTime(true, now));
+			bTime = Math.max(1, tc.getRemainingTime(false, now));
+		} else {
+			wTime = 0;
+			bTime = 0;
+		}
+		final int inc = tc.getIncrement();
+		final int movesToGo = tc.getMovesToTC();
 
-		computerThread = new ComputerMoveSelectionThread(EnginePlayer.getInstance(), ph, currPos, haveDrawOffer,
-				2000, 2000, inc, movesToGo);
-		computerThread.execute();
+		return new ComputerMoveSelectionThread(ph, currPos, haveDrawOffer, wTime, bTime, inc,
+				movesToGo, ponder);
+	}
+
+	/**
+	 * Start searching on the player's time, assuming the player makes the reply the engine
+	 * expected to its last move.
+	 */
+	private synchronized void startPondering() {
+		Move reply = expectedReply;
+		expectedReply = null;
+		if (!ponderEnabled || reply == null || game == null
+				|| (gameMode != GameMode.PLAYER_WHITE && gameMode != GameMode.PLAYER_BLACK)
+				|| game.getGameStatus() != Status.ALIVE || !isPlayerTurn()
+				|| computerThread != null || analysisThread != null || ponderThread != null) {
+			return;
+		}
+
+		Position pos = new Position(game.currPos());
+		if (!MoveGenerator.INSTANCE.generateLegalMoves(pos).contains(reply)) {
+			return;
+		}
+
+		Pair<PositionSnapshot, ArrayList<Move>> ph = game.getUCIHistory();
+		ArrayList<Move> moves = new ArrayList<>(ph.second);
+		moves.add(reply);
+		pos.makeMove(reply, new UndoInfo());
+
+		ponderThread = newComputerThread(new Pair<>(ph.first, moves), pos.snapshot(), false, true);
+		engineSession.execute(ponderThread);
+	}
+
+	/**
+	 * If the engine is pondering on the position the player's move led to, let the ponder search
+	 * go on as the engine's search for its next move.
+	 *
+	 * @return True if the ponder search was kept
+	 */
+	private synchronized boolean tryPonderHit() {
+		if (ponderThread == null || computerThread != null || game == null || isPlayerTurn()
+				|| !ponderThread.currPos.equals(game.currPos().snapshot())
+				|| ponderThread.enginePlayer == null || !ponderThread.enginePlayer.ponderHit()) {
+			return false;
+		}
+
+		Log.i(getClass().getSimpleName(), "Ponder hit");
+		computerThread = ponderThread;
+		ponderThread = null;
+		updateStatusText();
+		getGui().onOpponentBeganThinking();
+		return true;
 	}
 
 	protected void onEngineMoveMade(@NonNull String cmd) {
@@ -848,37 +1140,26 @@ public class EngineController extends AbstractGameController implements GameCont
 		stopAnalysis();
 		updateComputeThreads(true);
 		onMoveMade();
+		startPondering();
 	}
 
+	/**
+	 * Stop the engine's search, and its ponder search if any, without waiting for the engine.
+	 * The next search is queued behind them.
+	 */
 	private synchronized void stopComputerThinking() {
+		if (ponderThread != null) {
+			engineSession.cancel(ponderThread);
+			ponderThread = null;
+		}
+
 		if (computerThread == null) {
 			return;
 		}
 
-		computerThread.stop();
-
-		int elapsed = 0;
-
-		while (computerThread != null) {
-			if (BuildConfig.DEBUG) {
-				Log.i(getClass().getSimpleName(), "Waiting for computer thread to end");
-			}
-
-			if (elapsed > 500) {
-				computerThread.cancel(true);
-				computerThread = null;
-				if (BuildConfig.DEBUG) {
-					Log.w(getClass().getSimpleName(), "Computer thread forcibly terminated");
-				}
-			}
-
-			try {
-				Thread.sleep(100);
-				elapsed += 100;
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
+		// the search result is stale; make sure it isn't played
+		engineSession.cancel(computerThread);
+		computerThread = null;
 	}
 
 	private synchronized void startAnalysis() {
@@ -891,51 +1172,57 @@ public class EngineController extends AbstractGameController implements GameCont
 			throw new IllegalStateException("Cannot start analysis while computer thread is running");
 		} else if (analysisThread != null) {
 			throw new IllegalStateException("Analysis already started");
-		} else if (mDelayedStartAnalysisTask != null) {
-			throw new IllegalStateException("Analysis is already being started with a delay");
 		} else if (isGameStarting()) {
 			throw new IllegalStateException("Cannot start analysis when game is starting");
 		}
 
-		final Pair<Position, ArrayList<Move>> ph = game.getUCIHistory();
+		analysisScheduler.cancel();
+
+		final Pair<PositionSnapshot, ArrayList<Move>> ph = game.getUCIHistory();
 		final boolean haveDrawOffer = game.haveDrawOffer();
-		final Position currPos = new Position(game.currPos());
+		final PositionSnapshot currPos = game.currPos().snapshot();
 
-		analysisThread = new AnalysisThread(EnginePlayer.getInstance(), ph, currPos, haveDrawOffer);
-		analysisThread.execute();
+		analysisThread = new AnalysisThread(ph, currPos, haveDrawOffer, analysisLines);
+		engineSession.execute(analysisThread);
+		startPrefetch();
 	}
 
-	private synchronized void stopAnalysis() {
-		cancelStartAnalysisDelayed();
-
-		if (analysisThread == null) {
-			return;
+	/**
+	 * Analyze the positions likely to come next alongside the current position, unless the game
+	 * is being annotated, which keeps the spare cores busy already.
+	 */
+	private void startPrefetch() {
+		cancelPrefetch();
+		if (annotator == null) {
+			prefetcher = new AnalysisPrefetcher(game);
+			prefetcher.start();
 		}
+	}
 
-		int elapsed = 0;
-
-		analysisThread.stop();
-		while (analysisThread != null) {
-			if (elapsed > 2000) {
-				Log.e(getClass().getSimpleName(), "Analysis thread overheated");
-				analysisThread.cancel(true);
-
-				getGui().onAnalysisInterrupted();
-			}
+	/**
+	 * Stop analyzing ahead, without waiting for the engine.
+	 */
+	private void cancelPrefetch() {
+		if (prefetcher != null) {
+			prefetcher.cancel();
+			prefetcher = null;
+		}
+	}
 
-			if (elapsed > 5000) {
-				Log.e(getClass().getSimpleName(), "Analysis thread super-overheated");
-				android.os.Process.killProcess(android.os.Process.myPid());
-			}
+	/**
+	 * Stop the analysis without waiting for the engine. The next search is queued behind it.
+	 */
+	private synchronized void stopAnalysis() {
+		analysisScheduler.cancel();
+		cancelPrefetch();
 
-			try {
-				Thread.sleep(10);
-				elapsed += 10;
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+		if (analysisThread == null) {
+			return;
 		}
 
+		engineSession.cancel(analysisThread);
+		analysisThread = null;
+		getGui().onThinkingInfoChanged(null);
 		updateStatusText();
 	}
 
@@ -945,23 +1232,71 @@ public class EngineController extends AbstractGameController implements GameCont
 
 	public void stopSearch() {
 		if (computerThread != null) {
-			computerThread.stop();
+			// the search returns the best move found so far, which is then played
+			engineSession.stop(computerThread);
 		}
 	}
 
 
-	protected abstract class EngineTaskThread<R> extends AsyncTask<Void, ThinkingInfo, R> {
-		protected final EnginePlayer enginePlayer;
-		protected final Pair<Position, ArrayList<Move>> ph;
-		protected final Position currPos;
+	/**
+	 * A search of the game's engine, run by the {@link #engineSession}.
+	 */
+	protected abstract class EngineTaskThread<R> extends EngineSession.Task<R> {
+		/** The game's engine, once the task is about to run. */
+		protected volatile EnginePlayer enginePlayer;
+		protected final EngineControllerSearchListener searchListener;
+		protected final Pair<PositionSnapshot, ArrayList<Move>> ph;
+		protected final PositionSnapshot currPos;
 		protected final boolean haveDrawOffer;
 
-		protected EngineTaskThread(EnginePlayer player, Pair<Position, ArrayList<Move>> ph,
-		                           Position currPos, boolean haveDrawOffer) {
-			this.enginePlayer = player;
+		protected EngineTaskThread(EngineSession.State runState,
+		                           Pair<PositionSnapshot, ArrayList<Move>> ph,
+		                           PositionSnapshot currPos, boolean haveDrawOffer) {
+			super(runState);
 			this.ph = ph;
 			this.currPos = currPos;
 			this.haveDrawOffer = haveDrawOffer;
+			this.searchListener = new EngineControllerSearchListener(thinkingUpdateIntervalMillis) {
+				@Override
+				protected void onThinkingInfoChanged(ThinkingInfo thinkingInfo) {
+					if (isThinkingShown()) {
+						getGui().onThinkingInfoChanged(thinkingInfo);
+					}
+				}
+			};
+		}
+
+		/**
+		 * Check whether the task's search info is to be shown. Called on the main thread.
+		 */
+		protected boolean isThinkingShown() {
+			return true;
+		}
+
+		@Override
+		protected void onCancelled() {
+			searchListener.close();
+		}
+
+		@Override
+		protected void prepare() {
+			// waits for the engine if it is still booting
+			enginePlayer = EnginePlayer.getInstance();
+		}
+
+		@Override
+		protected void requestEngineStop() {
+			enginePlayer.requestStop();
+		}
+
+		@Override
+		protected void clearEngineStop() {
+			enginePlayer.clearStopRequest();
+		}
+
+		@Override
+		protected void onStopTimeout() {
+			EnginePlayer.shutdownEngine();
 		}
 	}
 
@@ -970,40 +1305,56 @@ public class EngineController extends AbstractGameController implements GameCont
 		final int bTime;
 		final int inc;
 		final int movesToGo;
-
-		protected ComputerMoveSelectionThread(EnginePlayer player, Pair<Position, ArrayList<Move>> ph,
-		                                      Position currPos, boolean haveDrawOffer, int wTime,
-		                                      int bTime, int inc, int movesToGo) {
-			super(player, ph, currPos, haveDrawOffer);
+		/** True to search on the opponent's time, until a ponder hit or a stop. */
+		final boolean ponder;
+		/** The reply the engine expects to the move found. */
+		private Move expectedReply;
+
+		protected ComputerMoveSelectionThread(Pair<PositionSnapshot, ArrayList<Move>> ph,
+		                                      PositionSnapshot currPos, boolean haveDrawOffer, int wTime,
+		                                      int bTime, int inc, int movesToGo, boolean ponder) {
+			super(EngineSession.State.SEARCHING, ph, currPos, haveDrawOffer);
 			this.wTime = wTime;
 			this.bTime = bTime;
 			this.inc = inc;
 			this.movesToGo = movesToGo;
+			this.ponder = ponder;
 		}
 
 		@Override
-		protected String doInBackground(Void... params) {
+		protected String doInBackground() {
 			try {
-				return enginePlayer.doSearch(ph.first,
-						ph.second, currPos, haveDrawOffer, wTime, bTime,
-						inc, movesToGo, maxDepth, new EngineControllerSearchListener() {
-							@Override
-							protected void onThinkingInfoChanged(ThinkingInfo thinkingInfo) {
-								publishProgress(thinkingInfo);
-							}
-						});
+				enginePlayer.setPondering(ponderEnabled);
+				String move;
+				if (ponder) {
+					move = enginePlayer.ponderSearch(ph.first, ph.second, currPos, wTime, bTime,
+							inc, movesToGo, moveTime, strengthLevel, searchListener);
+				} else {
+					move = enginePlayer.doSearch(ph.first,
+							ph.second, currPos, haveDrawOffer, wTime, bTime,
+							inc, movesToGo, moveTime, strengthLevel, searchListener);
+				}
+				expectedReply = enginePlayer.getPonderMove();
+				return move;
 			} catch (InterruptedException e) {
 				return null;
 			}
 		}
 
 		@Override
-		protected void onProgressUpdate(ThinkingInfo... values) {
-			getGui().onThinkingInfoChanged(values[0]);
+		protected boolean isThinkingShown() {
+			// a ponder search would give away the reply the engine expects
+			return !ponder || computerThread == this;
 		}
 
 		@Override
 		protected void onPreExecute() {
+			if (ponder) {
+				// the ponder thread is only made the computer thread on a ponder hit
+				Log.i(getClass().getSimpleName(), "Ponder thread started");
+				return;
+			}
+
 			if (isAnalyzing() || (computerThread != null && computerThread != this)) {
 				throw new IllegalStateException("Different UCI thread already started");
 			}
@@ -1017,10 +1368,20 @@ public class EngineController extends AbstractGameController implements GameCont
 
 		@Override
 		protected void onPostExecute(String s) {
+			searchListener.close();
+			if (computerThread != this) {
+				// a ponder search that was never hit; its move is for a position that didn't occur
+				if (ponderThread == this) {
+					ponderThread = null;
+				}
+				return;
+			}
+
 			computerThread = null;
 			Log.i(getClass().getSimpleName(), "Computer move selection thread stopped");
 
 			if (s != null && !s.equals("")) {
+				EngineController.this.expectedReply = expectedReply;
 				onEngineMoveMade(s);
 			} else if (s != null && s.equals("")) {
 				getGui().onAnalysisInterrupted();
@@ -1028,48 +1389,43 @@ public class EngineController extends AbstractGameController implements GameCont
 
 			getGui().onOpponentStoppedThinking();
 		}
-
-		protected void stop() {
-			enginePlayer.stopSearch();
-		}
 	}
 
 	protected class AnalysisThread extends EngineTaskThread<String> {
-		protected AnalysisThread(EnginePlayer player, Pair<Position, ArrayList<Move>> ph,
-		                         Position currPos, boolean haveDrawOffer) {
-			super(player, ph, currPos, haveDrawOffer);
+		private final int numPV;
+
+		protected AnalysisThread(Pair<PositionSnapshot, ArrayList<Move>> ph,
+		                         PositionSnapshot currPos, boolean haveDrawOffer, int numPV) {
+			super(EngineSession.State.ANALYZING, ph, currPos, haveDrawOffer);
+			this.numPV = numPV;
 		}
 
 		@Override
-		protected String doInBackground(Void... params) {
-			if (enginePlayer.isStoppingSearch()) {
-				return null;
-			}
-
+		protected String doInBackground() {
 			String bestMove = null;
 
 			try {
-				bestMove = enginePlayer.analyze(ph.first, new EngineControllerSearchListener() {
-					@Override
-					protected void onThinkingInfoChanged(ThinkingInfo thinkingInfo) {
-						publishProgress(thinkingInfo);
-					}
-				}, ph.second, currPos, haveDrawOffer);
+				bestMove = enginePlayer.analyze(ph.first, searchListener, ph.second, currPos,
+						haveDrawOffer, numPV);
 			} catch (InterruptedException e) {
 				if (BuildConfig.DEBUG) {
 					e.printStackTrace();
 				}
 			}
 
-			// set the analysis thread to null here since otherwise waiting methods will never allow
-			// onPostExecute() to happen
-			analysisThread = null;
 			return bestMove;
 		}
 
 		@Override
-		protected void onProgressUpdate(ThinkingInfo... values) {
-			getGui().onThinkingInfoChanged(values[0]);
+		protected void onStopTimeout() {
+			super.onStopTimeout();
+			getGui().onAnalysisInterrupted();
+		}
+
+		@Override
+		protected boolean isThinkingShown() {
+			// a cancelled analysis is for a position the user has left
+			return analysisThread == this;
 		}
 
 		@Override
@@ -1092,23 +1448,87 @@ public class EngineController extends AbstractGameController implements GameCont
 
 		@Override
 		protected void onPostExecute(String s) {
+			searchListener.close();
 			if (BuildConfig.DEBUG) {
 				Log.i(getClass().getSimpleName(), "Analysis thread stopped");
 			}
 
-			getGui().onThinkingInfoChanged(null);
-		}
+			if (analysisThread == this) {
+				analysisThread = null;
+			}
 
-		protected void stop() {
-			// stop the search
-			enginePlayer.stopSearch();
+			getGui().onThinkingInfoChanged(null);
 		}
 	}
 
 	private void shutdownEngine() {
+		cancelAnnotation();
 		stopComputerThinking();
 		stopAnalysis();
 		EnginePlayer.shutdownEngine();
+		EnginePool.getInstance().shutdownIdleSessions();
+	}
+
+	/**
+	 * Annotate the main line of the game in the background, with the evaluation of each position
+	 * and a NAG for each mistake. The game text is updated as each move is annotated. An
+	 * annotation already running is cancelled.
+	 */
+	public void annotateGame(@NonNull GameAnnotator.Listener listener) {
+		if (game == null) {
+			throw new IllegalStateException("Game is not initialized");
+		}
+
+		cancelAnnotation();
+		cancelPrefetch();
+		AnnotationListener annotationListener = new AnnotationListener(listener);
+		annotator = new GameAnnotator(game.getTree(), GameAnnotator.DEFAULT_DEPTH, 0,
+				annotationListener);
+		annotationListener.annotator = annotator;
+		annotator.start();
+	}
+
+	/**
+	 * Stop the annotation of the game, keeping the annotations made so far.
+	 */
+	public void cancelAnnotation() {
+		if (annotator != null) {
+			annotator.cancel();
+			annotator = null;
+		}
+	}
+
+	public boolean isAnnotating() {
+		return annotator != null;
+	}
+
+	/**
+	 * Keeps the game text up to date while an annotation runs, and ignores annotations that were
+	 * cancelled.
+	 */
+	private class AnnotationListener implements GameAnnotator.Listener {
+		private final GameAnnotator.Listener listener;
+		private GameAnnotator annotator;
+
+		AnnotationListener(GameAnnotator.Listener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void onAnnotationProgress(int done, int total) {
+			if (EngineController.this.annotator == annotator) {
+				updateMoveList();
+				listener.onAnnotationProgress(done, total);
+			}
+		}
+
+		@Override
+		public void onAnnotationFinished(boolean completed) {
+			if (EngineController.this.annotator == annotator) {
+				EngineController.this.annotator = null;
+				listener.onAnnotationFinished(completed);
+			}
+		}
 	}
 
 	public final void resignGame() {
@@ -1124,7 +1544,7 @@ public class EngineController extends AbstractGameController implements GameCont
 
 	@Override
 	public boolean isAnalyzing() {
-		return analysisThread != null || mDelayedStartAnalysisTask != null || isAnalysisQuickPause;
+		return analysisThread != null || analysisScheduler.isPending() || isAnalysisQuickPause;
 	}
 
 	@Deprecated
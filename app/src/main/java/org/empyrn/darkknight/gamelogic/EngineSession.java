@@ -0,0 +1,294 @@
+package org.empyrn.darkknight.gamelogic;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.empyrn.darkknight.BuildConfig;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the tasks that use the game's engine, one at a time, on a thread of their own.
+ * <p/>
+ * The session is a small state machine: it is {@link State#IDLE} between tasks,
+ * {@link State#SEARCHING} or {@link State#ANALYZING} while a task uses the engine, and
+ * {@link State#STOPPING} from the moment the running task is asked to stop until it is done.
+ * None of the transitions made from the main thread wait for the engine. Stopping a task only
+ * asks the engine to stop; the next task is queued behind it and starts once it is done, and
+ * the future of the stopped task tells when that is. If the engine doesn't stop in time, the
+ * task is told so it can shut the engine down.
+ */
+final class EngineSession {
+	/**
+	 * Time a task has to stop using the engine once it has been asked to.
+	 */
+	private static final int STOP_TIMEOUT_MILLIS = 2000;
+
+	enum State {
+		IDLE,
+		SEARCHING,
+		ANALYZING,
+		STOPPING
+	}
+
+	/**
+	 * A use of the engine. Its callbacks, apart from {@link #doInBackground()}, are called on
+	 * the main thread: {@link #onPreExecute()} when it is queued, and either
+	 * {@link #onPostExecute(Object)} or, if it was cancelled, {@link #onCancelled()} when it is
+	 * done.
+	 */
+	abstract static class Task<R> {
+		private final State runState;
+		private volatile boolean stopRequested = false;
+		private volatile boolean cancelled = false;
+		private FutureTask<R> future;
+
+		/**
+		 * @param runState {@link State#SEARCHING} or {@link State#ANALYZING}
+		 */
+		Task(@NonNull State runState) {
+			this.runState = runState;
+		}
+
+		protected void onPreExecute() {
+		}
+
+		/**
+		 * Get ready to use the engine, for instance by waiting for it to start. Runs on the
+		 * session's thread before the task counts as running, so a stop asked for in the
+		 * meantime keeps the task from running at all.
+		 */
+		protected void prepare() {
+		}
+
+		/**
+		 * Use the engine. Runs on the session's thread.
+		 */
+		protected abstract R doInBackground() throws InterruptedException;
+
+		protected void onPostExecute(R result) {
+		}
+
+		protected void onCancelled() {
+		}
+
+		/**
+		 * Ask the engine to stop the task's search, without waiting. A stop asked for before the
+		 * search has reached the engine must stop it as soon as it does. Called with the
+		 * session's lock held, so it must not block.
+		 */
+		protected abstract void requestEngineStop();
+
+		/**
+		 * Forget a stop asked for on behalf of an earlier task. Called before the task starts.
+		 */
+		protected abstract void clearEngineStop();
+
+		/**
+		 * Called on the main thread if the task still uses the engine
+		 * {@link #STOP_TIMEOUT_MILLIS} after it was asked to stop.
+		 */
+		protected abstract void onStopTimeout();
+
+		final boolean isCancelled() {
+			return cancelled;
+		}
+
+		final boolean isStopRequested() {
+			return stopRequested;
+		}
+	}
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(@NonNull Runnable r) {
+			Thread thread = new Thread(r, "EngineSession");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	/** Guarded by this. */
+	private State state = State.IDLE;
+	/** The task using the engine, or null. Guarded by this. */
+	private Task<?> running;
+
+	/**
+	 * @return The state of the session
+	 */
+	synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Queue a task. Called on the main thread, which {@link Task#onPreExecute()} runs on
+	 * before this returns.
+	 *
+	 * @return A future that is done when the task has stopped using the engine
+	 */
+	<R> Future<R> execute(@NonNull final Task<R> task) {
+		if (task.future != null) {
+			throw new IllegalStateException("Task already executed");
+		}
+
+		task.onPreExecute();
+		task.future = new FutureTask<>(new Callable<R>() {
+			@Override
+			public R call() throws Exception {
+				return run(task);
+			}
+		});
+		executor.execute(task.future);
+		return task.future;
+	}
+
+	/**
+	 * Run a job on the session's thread between tasks, for instance to start the engine. A job
+	 * that fails, for instance because the engine could not be started, is logged and skipped.
+	 */
+	void post(@NonNull final Runnable job) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					job.run();
+				} catch (RuntimeException e) {
+					Log.e(EngineSession.class.getSimpleName(), "Engine job failed", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Ask a task to stop. A task that hasn't started yet won't start. Doesn't wait for the
+	 * engine; the task's result is delivered as usual once it has stopped.
+	 *
+	 * @return A future that is done when the task has stopped using the engine
+	 */
+	Future<?> stop(@NonNull final Task<?> task) {
+		boolean isRunning;
+		synchronized (this) {
+			if (task.future == null) {
+				throw new IllegalStateException("Task not executed");
+			}
+
+			task.stopRequested = true;
+			isRunning = running == task;
+			if (isRunning) {
+				setState(State.STOPPING);
+				// under the lock, so the stop can't reach the engine after the next task has
+				// cleared it and be taken for a stop of that task
+				task.requestEngineStop();
+			}
+		}
+
+		// a task that hasn't started never will, and one that is done needs nothing
+		if (isRunning) {
+			mainHandler.postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					if (!task.future.isDone()) {
+						Log.w(EngineSession.class.getSimpleName(), "Engine did not stop within "
+								+ STOP_TIMEOUT_MILLIS + " ms");
+						task.onStopTimeout();
+					}
+				}
+			}, STOP_TIMEOUT_MILLIS);
+		}
+
+		return task.future;
+	}
+
+	/**
+	 * Stop a task whose result is no longer wanted. Its {@link Task#onCancelled()} is called
+	 * instead of {@link Task#onPostExecute(Object)}.
+	 *
+	 * @return A future that is done when the task has stopped using the engine
+	 */
+	Future<?> cancel(@NonNull Task<?> task) {
+		task.cancelled = true;
+		return stop(task);
+	}
+
+	/**
+	 * Run a task on the session's thread, unless it was stopped before its turn came.
+	 */
+	private <R> R run(final Task<R> task) throws InterruptedException {
+		synchronized (this) {
+			if (task.stopRequested) {
+				deliver(task, null);
+				return null;
+			}
+		}
+
+		// not under the lock, which the main thread takes to stop tasks
+		try {
+			task.prepare();
+		} catch (RuntimeException e) {
+			Log.e(EngineSession.class.getSimpleName(), "Engine task could not start", e);
+			deliver(task, null);
+			return null;
+		}
+
+		synchronized (this) {
+			if (task.stopRequested) {
+				deliver(task, null);
+				return null;
+			}
+
+			// a stop asked for from here on is for this task, so it must not be lost
+			task.clearEngineStop();
+			running = task;
+			setState(task.runState);
+		}
+
+		R result = null;
+		try {
+			result = task.doInBackground();
+			return result;
+		} catch (RuntimeException e) {
+			Log.e(EngineSession.class.getSimpleName(), "Engine task failed", e);
+			throw e;
+		} finally {
+			synchronized (this) {
+				running = null;
+				setState(State.IDLE);
+			}
+
+			deliver(task, result);
+		}
+	}
+
+	/**
+	 * Called with the lock held.
+	 */
+	private void setState(State newState) {
+		if (BuildConfig.DEBUG) {
+			Log.i(EngineSession.class.getSimpleName(), state + " -> " + newState);
+		}
+
+		state = newState;
+	}
+
+	private <R> void deliver(final Task<R> task, final R result) {
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (task.cancelled) {
+					task.onCancelled();
+				} else {
+					task.onPostExecute(result);
+				}
+			}
+		});
+	}
+}
@@ -346,10 +346,10 @@ public class Game {
 	 * Return the last zeroing position and a list of moves
 	 * to go from that position to the current position.
 	 */
-	public final Pair<Position, ArrayList<Move>> getUCIHistory() {
+	public final Pair<PositionSnapshot, ArrayList<Move>> getUCIHistory() {
 		Pair<List<Node>, Integer> ml = getTree().getMoveList();
 		List<Node> moveList = ml.first;
-		Position pos = new Position(getTree().startPos);
+		PositionSnapshot pos = getTree().startPos.snapshot();
 		ArrayList<Move> mList = new ArrayList<>();
 		Position currPos = new Position(pos);
 		UndoInfo ui = new UndoInfo();
@@ -359,7 +359,7 @@ public class Game {
 			mList.add(n.move);
 			currPos.makeMove(n.move, ui);
 			if (currPos.halfMoveClock == 0) {
-				pos = new Position(currPos);
+				pos = currPos.snapshot();
 				mList.clear();
 			}
 		}
@@ -379,25 +379,15 @@ public class Game {
 			boolean valid;
 			if (rep) {
 				valid = false;
-				UndoInfo ui = new UndoInfo();
-				int repetitions = 0;
-				Position posToCompare = new Position(getTree().currentPos);
+				int repetitions;
 				if (m != null) {
-					posToCompare.makeMove(m, ui);
-					repetitions = 1;
-				}
-				Pair<List<Node>, Integer> ml = getTree().getMoveList();
-				List<Node> moveList = ml.first;
-				Position tmpPos = new Position(getTree().startPos);
-				if (tmpPos.drawRuleEquals(posToCompare))
-					repetitions++;
-				int nMoves = ml.second;
-				for (int i = 0; i < nMoves; i++) {
-					Node n = moveList.get(i);
-					tmpPos.makeMove(n.move, ui);
-					TextIO.fixupEPSquare(tmpPos);
-					if (tmpPos.drawRuleEquals(posToCompare))
-						repetitions++;
+					UndoInfo ui = new UndoInfo();
+					pos.makeMove(m, ui);
+					TextIO.fixupEPSquare(pos);
+					repetitions = getTree().getRepetitionCount(pos.zobristHash()) + 1;
+					pos.unMakeMove(m, ui);
+				} else {
+					repetitions = getTree().getRepetitionCount();
 				}
 				if (repetitions >= 3)
 					valid = true;
@@ -0,0 +1,322 @@
+package org.empyrn.darkknight.gamelogic;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.empyrn.darkknight.engine.AnalysisCache;
+import org.empyrn.darkknight.engine.EnginePlayer;
+import org.empyrn.darkknight.engine.EnginePool;
+import org.empyrn.darkknight.engine.EngineResources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Evaluates every position of a game's main line in the background, and annotates the moves
+ * with the evaluations and with a NAG for the mistakes found.
+ * <p/>
+ * The positions are searched from the last one back to the start, so each search finds the
+ * positions that follow in the engine's hash table. Every move is annotated as soon as the
+ * positions before and after it have been evaluated, so a cancelled annotation keeps the
+ * annotations made so far, and they are saved with the game. Evaluations are also added to the
+ * {@link AnalysisCache}, and positions already analyzed deep enough are not searched again.
+ * <p/>
+ * The search runs on an engine session leased from the {@link EnginePool}, so the game's own
+ * engine is left alone.
+ */
+public final class GameAnnotator {
+	/** Depth each position is searched to by default. */
+	public static final int DEFAULT_DEPTH = 12;
+
+	/** Value in {@link #getEvaluations()} of positions not evaluated. */
+	public static final int NO_EVALUATION = Integer.MIN_VALUE;
+
+	/** Evaluation, in centipawns, of a position where mate is found in 0 moves. */
+	private static final int MATE_SCORE = 10000;
+
+	/** Evaluations are limited to this, in centipawns, when looking for mistakes. */
+	private static final int MAX_JUDGED_SCORE = 1000;
+
+	// loss of evaluation, in centipawns, by a move given each NAG
+	private static final int BLUNDER_LOSS = 300;
+	private static final int MISTAKE_LOSS = 100;
+	private static final int INACCURACY_LOSS = 50;
+
+	private static final int NAG_MISTAKE = 2;
+	private static final int NAG_BLUNDER = 4;
+	private static final int NAG_INACCURACY = 6;
+
+	/**
+	 * Receives the progress of an annotation on the main thread.
+	 */
+	public interface Listener {
+		/**
+		 * Called after each position has been evaluated and the moves around it annotated.
+		 *
+		 * @param done  Number of positions evaluated
+		 * @param total Number of positions in the main line, including the start position
+		 */
+		void onAnnotationProgress(int done, int total);
+
+		/**
+		 * @param completed True if all positions were evaluated, false if the annotation was
+		 *                  cancelled or failed
+		 */
+		void onAnnotationFinished(boolean completed);
+	}
+
+	private final GameTree tree;
+	private final int depth;
+	private final int nodes;
+	private final Listener listener;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	/** The moves of the main line; node i leads to position i + 1. */
+	private final List<GameTree.Node> mainLine;
+	private final PositionSnapshot[] positions;
+	private final Move[] moves;
+	/** Evaluations in centipawns from white's point of view, indexed like {@link #positions}. */
+	private final int[] evaluations;
+
+	private volatile boolean cancelled = false;
+	/** The leased session while the searches run. Guarded by this. */
+	private EnginePlayer session;
+	private Thread thread;
+
+	/**
+	 * Take a snapshot of the main line of a game. Must be called on the main thread.
+	 *
+	 * @param depth Depth to search each position to, or 0 for no depth limit
+	 * @param nodes Number of nodes to search in each position, or 0 for no node limit
+	 */
+	public GameAnnotator(@NonNull GameTree tree, int depth, int nodes, @NonNull Listener listener) {
+		if (depth <= 0 && nodes <= 0) {
+			throw new IllegalArgumentException("Either a depth or a node limit is required");
+		}
+
+		this.tree = tree;
+		this.depth = depth;
+		this.nodes = nodes;
+		this.listener = listener;
+
+		mainLine = tree.getMainLine();
+		int n = mainLine.size();
+		positions = new PositionSnapshot[n + 1];
+		moves = new Move[n];
+		evaluations = new int[n + 1];
+		Arrays.fill(evaluations, NO_EVALUATION);
+
+		Position pos = new Position(tree.startPos);
+		UndoInfo ui = new UndoInfo();
+		positions[0] = pos.snapshot();
+		for (int i = 0; i < n; i++) {
+			moves[i] = mainLine.get(i).move;
+			pos.makeMove(moves[i], ui);
+			TextIO.fixupEPSquare(pos);
+			positions[i + 1] = pos.snapshot();
+		}
+	}
+
+	/**
+	 * Start annotating on a background thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("Annotation already started");
+		}
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final boolean completed = evaluateMainLine();
+				mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						listener.onAnnotationFinished(completed);
+					}
+				});
+			}
+		}, "GameAnnotator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop annotating, keeping the annotations made so far. Doesn't wait for the engine; the
+	 * search in progress is asked to stop and the session is given back to the pool once it has.
+	 */
+	public void cancel() {
+		cancelled = true;
+		synchronized (this) {
+			if (session != null) {
+				session.requestStop();
+			}
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Get the evaluations of the positions of the main line so far, in centipawns from white's
+	 * point of view. Element 0 is the start position, element i the position after the i:th
+	 * half-move. A mate in n moves counts as {@code 10000 - n} centipawns.
+	 *
+	 * @return A copy of the evaluations, with {@link #NO_EVALUATION} for positions not evaluated
+	 */
+	@NonNull
+	public int[] getEvaluations() {
+		synchronized (evaluations) {
+			return evaluations.clone();
+		}
+	}
+
+	private boolean evaluateMainLine() {
+		EnginePool pool = EnginePool.getInstance();
+		EnginePlayer player;
+		try {
+			player = pool.lease(EngineResources.getHashMB(), EngineResources.getThreads());
+		} catch (InterruptedException e) {
+			return false;
+		} catch (RuntimeException e) {
+			Log.e(getClass().getSimpleName(), "Could not start engine for annotation", e);
+			return false;
+		}
+
+		synchronized (this) {
+			// a stop asked for from here on is for this annotation
+			player.clearStopRequest();
+			session = player;
+		}
+
+		try {
+			// an earlier game's positions would only take up room in the hash table
+			player.clearTT();
+
+			ArrayList<Move> mList = new ArrayList<>(Arrays.asList(moves));
+			final int total = positions.length;
+			for (int i = total - 1; i >= 0 && !cancelled; i--) {
+				Position pos = new Position(positions[i]);
+				final int score;
+				final String evalStr;
+				if (MoveGenerator.INSTANCE.generateLegalMoves(pos).isEmpty()) {
+					// a mate needs no evaluation in the comment
+					boolean mated = MoveGenerator.inCheck(pos);
+					score = mated ? -MATE_SCORE : 0;
+					evalStr = mated ? null : "0.00";
+				} else {
+					AnalysisCache.Entry entry = player.evaluate(positions[0],
+							new ArrayList<>(mList.subList(0, i)), positions[i], depth, nodes);
+					if (entry == null || cancelled) {
+						break;
+					}
+
+					score = entry.isMate ? (entry.score > 0 ? MATE_SCORE - entry.score
+							: -MATE_SCORE - entry.score) : entry.score;
+					evalStr = formatEvaluation(entry, pos.whiteMove);
+				}
+
+				final int index = i;
+				final int whiteScore = pos.whiteMove ? score : -score;
+				synchronized (evaluations) {
+					evaluations[index] = whiteScore;
+				}
+
+				mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						annotateNodes(index, evalStr);
+						listener.onAnnotationProgress(total - index, total);
+					}
+				});
+			}
+
+			return !cancelled;
+		} catch (InterruptedException e) {
+			return false;
+		} catch (RuntimeException e) {
+			Log.e(getClass().getSimpleName(), "Annotation failed", e);
+			return false;
+		} finally {
+			synchronized (this) {
+				session = null;
+			}
+
+			// a stop that came too late must not stop the next lessee's first search
+			player.clearStopRequest();
+			pool.release(player);
+		}
+	}
+
+	/**
+	 * Annotate the move leading to a position with its evaluation, and the move from the
+	 * position with a NAG if it loses too much. Runs on the main thread, which owns the nodes.
+	 */
+	private void annotateNodes(int index, @Nullable String evalStr) {
+		if (index > 0 && evalStr != null) {
+			GameTree.Node node = mainLine.get(index - 1);
+			Pair<String, String> ret = GameTree.Node.extractExtInfo(node.postComment, "eval");
+			String comment = ret.first.trim();
+			node.postComment = comment.isEmpty() ? "[%eval " + evalStr + "]"
+					: "[%eval " + evalStr + "] " + comment;
+		}
+
+		if (index < mainLine.size()) {
+			int before, after;
+			synchronized (evaluations) {
+				before = evaluations[index];
+				after = evaluations[index + 1];
+			}
+
+			if (before != NO_EVALUATION && after != NO_EVALUATION) {
+				GameTree.Node node = mainLine.get(index);
+				// the NAGs of other kinds were given by someone else and are kept
+				if (node.nag == 0 || node.nag == NAG_MISTAKE || node.nag == NAG_BLUNDER
+						|| node.nag == NAG_INACCURACY) {
+					node.nag = judgeMove(before, after, positions[index].isWhiteMove());
+				}
+			}
+		}
+
+		tree.notifyNodesChanged();
+	}
+
+	/**
+	 * Give a NAG to a move from the evaluations before and after it.
+	 *
+	 * @return The NAG, or 0 if the move isn't a mistake
+	 */
+	private static int judgeMove(int before, int after, boolean whiteMove) {
+		before = Math.max(-MAX_JUDGED_SCORE, Math.min(before, MAX_JUDGED_SCORE));
+		after = Math.max(-MAX_JUDGED_SCORE, Math.min(after, MAX_JUDGED_SCORE));
+		int loss = whiteMove ? before - after : after - before;
+		if (loss >= BLUNDER_LOSS) {
+			return NAG_BLUNDER;
+		} else if (loss >= MISTAKE_LOSS) {
+			return NAG_MISTAKE;
+		} else if (loss >= INACCURACY_LOSS) {
+			return NAG_INACCURACY;
+		} else {
+			return 0;
+		}
+	}
+
+	/**
+	 * Format an evaluation the way PGN files have it: in pawns from white's point of view, or
+	 * the number of moves to mate, negative if black mates.
+	 */
+	private static String formatEvaluation(AnalysisCache.Entry entry, boolean whiteMove) {
+		int score = whiteMove ? entry.score : -entry.score;
+		if (entry.isMate) {
+			return "#" + score;
+		} else {
+			return String.format(Locale.US, "%.2f", score / 100.0);
+		}
+	}
+}
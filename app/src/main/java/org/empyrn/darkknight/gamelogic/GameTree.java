@@ -17,7 +17,10 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 
@@ -43,6 +46,11 @@ public class GameTree {
 
 	PgnToken.PgnTokenReceiver gameStateListener;
 
+	// Zobrist hash -> visited nodes reaching that position, possibly through different variations
+	private final Map<Long, List<Node>> nodesByHash = new HashMap<>();
+	// Zobrist hash -> number of times the position occurs on the path from the root to currentNode
+	private final Map<Long, Integer> pathHashCounts = new HashMap<>();
+
 	public GameTree() {
 		setStartPos(new Position(Position.START_POSITION));
 	}
@@ -83,6 +91,7 @@ public class GameTree {
 		rootNode = new Node();
 		currentNode = rootNode;
 		currentPos = new Position(startPos);
+		resetHashIndex();
 		updateListener();
 	}
 
@@ -534,6 +543,7 @@ public class GameTree {
 
 		rootNode = gameRoot;
 		currentNode = rootNode;
+		resetHashIndex();
 
 		// If result indicated draw by agreement or a resigned game,
 		// add that info to the game tree.
@@ -638,6 +648,7 @@ public class GameTree {
 		rootNode = new Node();
 		Node.readFromStream(dis, rootNode);
 		currentNode = rootNode;
+		resetHashIndex();
 		int pathLen = dis.readInt();
 		for (int i = 0; i < pathLen; i++)
 			goForward(dis.readInt());
@@ -651,6 +662,7 @@ public class GameTree {
 	 */
 	public final void goBack() {
 		if (currentNode.parent != null) {
+			adjustPathCount(currentNode.hashKey, -1);
 			currentPos.unMakeMove(currentNode.move, currentNode.ui);
 			currentNode = currentNode.parent;
 		}
@@ -688,6 +700,110 @@ public class GameTree {
 			currentNode = currentNode.children.get(variation);
 			currentPos.makeMove(currentNode.move, currentNode.ui);
 			TextIO.fixupEPSquare(currentPos);
+			currentNode.hashKey = currentPos.zobristHash();
+			indexNode(currentNode);
+			adjustPathCount(currentNode.hashKey, 1);
+		}
+	}
+
+	/**
+	 * Go to an arbitrary node in the game tree, making the path to it the default variation.
+	 */
+	public final void goToNode(@NonNull Node node) {
+		List<Node> path = new ArrayList<>();
+		Set<Node> ancestors = new HashSet<>();
+		for (Node n = node; n != null; n = n.parent) {
+			path.add(n);
+			ancestors.add(n);
+		}
+
+		while (!ancestors.contains(currentNode)) {
+			goBack();
+		}
+
+		for (int i = path.indexOf(currentNode) - 1; i >= 0; i--) {
+			if (currentNode.verifyChildren(currentPos)) {
+				updateListener();
+			}
+
+			goForward(currentNode.children.indexOf(path.get(i)));
+		}
+	}
+
+	/**
+	 * Get the number of times the current position occurs on the path from the root to the
+	 * current node, including the current node itself.
+	 */
+	public final int getRepetitionCount() {
+		return getRepetitionCount(currentPos.zobristHash());
+	}
+
+	/**
+	 * Get the number of times a position occurs on the path from the root to the current node.
+	 */
+	public final int getRepetitionCount(long hashKey) {
+		Integer count = pathHashCounts.get(hashKey);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * List of other visited nodes, in any variation, that reach the same position as the
+	 * current node.
+	 */
+	public final List<Node> getTranspositions() {
+		List<Node> ret = new ArrayList<>();
+		List<Node> nodes = nodesByHash.get(currentPos.zobristHash());
+		if (nodes != null) {
+			for (Node node : nodes) {
+				if (node != currentNode) {
+					ret.add(node);
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Rebuild the hash index for a tree positioned at the root node.
+	 */
+	private void resetHashIndex() {
+		nodesByHash.clear();
+		pathHashCounts.clear();
+		rootNode.hashKey = currentPos.zobristHash();
+		indexNode(rootNode);
+		adjustPathCount(rootNode.hashKey, 1);
+	}
+
+	private void indexNode(Node node) {
+		List<Node> nodes = nodesByHash.get(node.hashKey);
+		if (nodes == null) {
+			nodes = new ArrayList<>(1);
+			nodesByHash.put(node.hashKey, nodes);
+		}
+
+		if (!nodes.contains(node)) {
+			nodes.add(node);
+		}
+	}
+
+	private void unindexSubtree(Node node) {
+		List<Node> nodes = nodesByHash.get(node.hashKey);
+		if (nodes != null && nodes.remove(node) && nodes.isEmpty()) {
+			nodesByHash.remove(node.hashKey);
+		}
+
+		for (Node child : node.children) {
+			unindexSubtree(child);
+		}
+	}
+
+	private void adjustPathCount(long hashKey, int delta) {
+		int count = getRepetitionCount(hashKey) + delta;
+		if (count > 0) {
+			pathHashCounts.put(hashKey, count);
+		} else {
+			pathHashCounts.remove(hashKey);
 		}
 	}
 
@@ -762,7 +878,7 @@ public class GameTree {
 		int nChild = currentNode.children.size();
 		if ((varNo < 0) || (varNo >= nChild))
 			return;
-		currentNode.children.remove(varNo);
+		unindexSubtree(currentNode.children.remove(varNo));
 		if (varNo == currentNode.defaultChild) {
 			currentNode.defaultChild = 0;
 		} else if (varNo < currentNode.defaultChild) {
@@ -800,6 +916,39 @@ public class GameTree {
 		return new Pair<>(ret, numMovesPlayed);
 	}
 
+	/**
+	 * Get the moves of the main line from the start position, following the default variation at
+	 * branch points.
+	 */
+	final List<Node> getMainLine() {
+		List<Node> ret = new ArrayList<>();
+		Node node = rootNode;
+		Position pos = new Position(startPos);
+		UndoInfo ui = new UndoInfo();
+		boolean changed = false;
+		while (true) {
+			if (node.verifyChildren(pos))
+				changed = true;
+			if (node.defaultChild >= node.children.size())
+				break;
+			Node child = node.children.get(node.defaultChild);
+			ret.add(child);
+			pos.makeMove(child.move, ui);
+			node = child;
+		}
+		if (changed)
+			updateListener();
+		return ret;
+	}
+
+	/**
+	 * Report that comments or annotations of nodes were changed outside of this class, so the
+	 * game text has to be regenerated.
+	 */
+	final void notifyNodesChanged() {
+		updateListener();
+	}
+
 	final void setRemainingTime(int remaining) {
 		currentNode.remainingTime = remaining;
 	}
@@ -1020,6 +1169,7 @@ public class GameTree {
 		// Subtrees of invalid moves will be dropped when detected.
 		// Always valid for current node.
 		private UndoInfo ui;        // Computed when move is computed
+		private long hashKey;        // Zobrist hash of the position, computed when the node is visited
 		String playerAction;        // Player action. Draw claim/offer/accept or resign.
 
 		int remainingTime;            // Remaining time in ms for side that played moveStr, or INT_MIN if unknown.
@@ -1407,7 +1557,7 @@ public class GameTree {
 			}
 		}
 
-		private static Pair<String, String> extractExtInfo(String comment, String cmd) {
+		static Pair<String, String> extractExtInfo(String comment, String cmd) {
 			comment = comment.replaceAll("\n|\r|\t", " ");
 			String remaining = comment;
 			String param = null;
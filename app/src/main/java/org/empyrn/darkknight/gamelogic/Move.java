@@ -1,11 +1,16 @@
 package org.empyrn.darkknight.gamelogic;
 
+import android.os.Parcel;
+import android.os.Parcelable;
+
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author petero
  */
-public final class Move implements Serializable {
+public final class Move implements Serializable, Parcelable {
 	/**
 	 * From square, 0-63.
 	 */
@@ -36,6 +41,81 @@ public final class Move implements Serializable {
 		this.promoteTo = m.promoteTo;
 	}
 
+	/**
+	 * Pack the move into 16 bits: 6 bits for each square and 4 bits for the promotion piece.
+	 */
+	public final int toCompact() {
+		return from | (to << 6) | (promoteTo << 12);
+	}
+
+	/**
+	 * Create a move from its 16-bit form.
+	 *
+	 * @see #toCompact()
+	 */
+	public static Move fromCompact(int compact) {
+		return new Move(compact & 0x3f, (compact >>> 6) & 0x3f, (compact >>> 12) & 0xf);
+	}
+
+	/**
+	 * Write a list of moves to a parcel as a byte array with two bytes per move. A null list is
+	 * written as a null array.
+	 */
+	public static void writeMoveList(Parcel dest, List<Move> moves) {
+		if (moves == null) {
+			dest.writeByteArray(null);
+			return;
+		}
+
+		byte[] data = new byte[moves.size() * 2];
+		for (int i = 0; i < moves.size(); i++) {
+			int compact = moves.get(i).toCompact();
+			data[2 * i] = (byte) compact;
+			data[2 * i + 1] = (byte) (compact >>> 8);
+		}
+
+		dest.writeByteArray(data);
+	}
+
+	/**
+	 * Read a list of moves written by {@link #writeMoveList(Parcel, List)}.
+	 */
+	public static ArrayList<Move> readMoveList(Parcel in) {
+		byte[] data = in.createByteArray();
+		if (data == null) {
+			return null;
+		}
+
+		ArrayList<Move> moves = new ArrayList<>(data.length / 2);
+		for (int i = 0; i < data.length / 2; i++) {
+			moves.add(fromCompact((data[2 * i] & 0xff) | ((data[2 * i + 1] & 0xff) << 8)));
+		}
+
+		return moves;
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeInt(toCompact());
+	}
+
+	public static final Creator<Move> CREATOR = new Creator<Move>() {
+		@Override
+		public Move createFromParcel(Parcel in) {
+			return fromCompact(in.readInt());
+		}
+
+		@Override
+		public Move[] newArray(int size) {
+			return new Move[size];
+		}
+	};
+
 	@SuppressWarnings("RedundantIfStatement")
 	@Override
 	public boolean equals(Object o) {
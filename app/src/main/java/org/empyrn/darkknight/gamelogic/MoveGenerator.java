@@ -268,23 +268,24 @@ public final class MoveGenerator {
 	}
 
 	public Set<Move> generateLegalMoves(Position givenPosition) {
-		HashSet<Move> cachedValue = mGeneratedLegalMoves.get(givenPosition);
+		PositionSnapshot key = givenPosition.snapshot();
+		HashSet<Move> cachedValue = mGeneratedLegalMoves.get(key);
 		if (cachedValue != null) {
 			return Collections.unmodifiableSet(cachedValue);
 		}
 
-		Position position = new Position(givenPosition);            // copy the position to prevent issues
+		Position position = key.toPosition();            // copy the position to prevent issues
 
 		ArrayList<Move> pseudoLegalMoves = pseudoLegalMoves(position);
 		ArrayList<Move> legalMoves = removeIllegal(position, pseudoLegalMoves);
 
 		HashSet<Move> generatedLegalMoves = new HashSet<>(legalMoves);
 
-		mGeneratedLegalMoves.put(position, generatedLegalMoves);
+		mGeneratedLegalMoves.put(key, generatedLegalMoves);
 		return Collections.unmodifiableSet(generatedLegalMoves);
 	}
 
-	private final HashMap<Position, HashSet<Move>> mGeneratedLegalMoves = new HashMap<>();
+	private final HashMap<PositionSnapshot, HashSet<Move>> mGeneratedLegalMoves = new HashMap<>();
 
 	/**
 	 * Add all moves from square sq0 in direction delta.
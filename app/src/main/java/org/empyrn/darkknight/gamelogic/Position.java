@@ -1,5 +1,8 @@
 package org.empyrn.darkknight.gamelogic;
 
+import android.os.Parcel;
+import android.os.Parcelable;
+
 import java.io.Serializable;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -14,7 +17,7 @@ import java.security.NoSuchAlgorithmException;
  * @author petero
  */
 // TODO work on making this class immutable so some of the uglier parts of clone won't apply anymore
-public final class Position implements Serializable {
+public final class Position implements Serializable, Parcelable {
 
 	public static final Position START_POSITION;
 
@@ -59,6 +62,8 @@ public final class Position implements Serializable {
 	private long hashKey;           // Cached Zobrist hash key
 	private int wKingSq, bKingSq;   // Cached king positions
 
+	private transient PositionSnapshot snapshot;    // Cached snapshot, cleared when the board changes
+
 	/**
 	 * Initialize board to empty position.
 	 */
@@ -86,6 +91,52 @@ public final class Position implements Serializable {
 		hashKey = other.hashKey;
 		wKingSq = other.wKingSq;
 		bKingSq = other.bKingSq;
+		snapshot = other.snapshot;
+	}
+
+	public Position(PositionSnapshot snapshot) {
+		squares = new int[64];
+		set(snapshot);
+	}
+
+	/**
+	 * Set this position to the state of a snapshot.
+	 */
+	public final void set(PositionSnapshot snapshot) {
+		wKingSq = bKingSq = -1;
+		for (int sq = 0; sq < 64; sq++) {
+			int p = snapshot.getPiece(sq);
+			squares[sq] = p;
+			if (p == Piece.WKING) {
+				wKingSq = sq;
+			} else if (p == Piece.BKING) {
+				bKingSq = sq;
+			}
+		}
+		whiteMove = snapshot.isWhiteMove();
+		castleMask = snapshot.getCastleMask();
+		epSquare = snapshot.getEpSquare();
+		halfMoveClock = snapshot.getHalfMoveClock();
+		fullMoveCounter = snapshot.getFullMoveCounter();
+		hashKey = snapshot.zobristHash();
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Return an immutable snapshot of the current state. Repeated calls return the same snapshot
+	 * for as long as the position isn't changed.
+	 */
+	public final PositionSnapshot snapshot() {
+		PositionSnapshot s = snapshot;
+		if (s == null || s.getHalfMoveClock() != halfMoveClock
+				|| s.getFullMoveCounter() != fullMoveCounter) {
+			// the move counters are public fields, so changes to them are only detected here
+			s = new PositionSnapshot(squares, whiteMove, castleMask, epSquare, halfMoveClock,
+					fullMoveCounter, hashKey);
+			snapshot = s;
+		}
+
+		return s;
 	}
 
 	@SuppressWarnings("RedundantIfStatement")
@@ -161,6 +212,7 @@ public final class Position implements Serializable {
 		if (whiteMove != this.whiteMove) {
 			hashKey ^= whiteHashKey;
 			this.whiteMove = whiteMove;
+			snapshot = null;
 		}
 	}
 
@@ -210,6 +262,7 @@ public final class Position implements Serializable {
 
 		// Update board
 		squares[square] = piece;
+		snapshot = null;
 
 		// Update king position
 		if (piece == Piece.WKING) {
@@ -258,6 +311,7 @@ public final class Position implements Serializable {
 		hashKey ^= castleHashKeys[this.castleMask];
 		hashKey ^= castleHashKeys[castleMask];
 		this.castleMask = castleMask;
+		snapshot = null;
 	}
 
 	/**
@@ -272,6 +326,7 @@ public final class Position implements Serializable {
 			hashKey ^= epHashKeys[(this.epSquare >= 0) ? getX(this.epSquare) + 1 : 0];
 			hashKey ^= epHashKeys[(epSquare >= 0) ? getX(epSquare) + 1 : 0];
 			this.epSquare = epSquare;
+			snapshot = null;
 		}
 	}
 
@@ -501,6 +556,31 @@ public final class Position implements Serializable {
 		return TextIO.toFEN(this);
 	}
 
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	/**
+	 * Positions are parceled in their packed snapshot form.
+	 */
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		snapshot().writeToParcel(dest, flags);
+	}
+
+	public static final Creator<Position> CREATOR = new Creator<Position>() {
+		@Override
+		public Position createFromParcel(Parcel in) {
+			return new Position(PositionSnapshot.CREATOR.createFromParcel(in));
+		}
+
+		@Override
+		public Position[] newArray(int size) {
+			return new Position[size];
+		}
+	};
+
 	/**
 	 * Useful for debugging.
 	 */
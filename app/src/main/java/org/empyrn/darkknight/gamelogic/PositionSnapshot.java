@@ -0,0 +1,205 @@
+package org.empyrn.darkknight.gamelogic;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.Serializable;
+
+/**
+ * An immutable copy of the state of a {@link Position}.
+ * <p/>
+ * The board is packed four bits per square into four longs, so a snapshot is small, cheap to
+ * compare and can be shared between threads and used as a hash key without further copying.
+ * Use {@link Position#snapshot()} to get one; a position that hasn't changed returns the same
+ * snapshot every time.
+ */
+public final class PositionSnapshot implements Serializable, Parcelable {
+	private static final int SQUARES_PER_WORD = 16;
+
+	private final long board0, board1, board2, board3;
+
+	// side to move (bit 0), castle mask (bits 1-4), en passant square + 1 (bits 5-11)
+	private final int flags;
+
+	private final int halfMoveClock;
+	private final int fullMoveCounter;
+	private final long hashKey;
+
+	PositionSnapshot(int[] squares, boolean whiteMove, int castleMask, int epSquare,
+	                 int halfMoveClock, int fullMoveCounter, long hashKey) {
+		this.board0 = packSquares(squares, 0);
+		this.board1 = packSquares(squares, 1);
+		this.board2 = packSquares(squares, 2);
+		this.board3 = packSquares(squares, 3);
+		this.flags = (whiteMove ? 1 : 0) | (castleMask << 1) | ((epSquare + 1) << 5);
+		this.halfMoveClock = halfMoveClock;
+		this.fullMoveCounter = fullMoveCounter;
+		this.hashKey = hashKey;
+	}
+
+	private PositionSnapshot(Parcel in) {
+		board0 = in.readLong();
+		board1 = in.readLong();
+		board2 = in.readLong();
+		board3 = in.readLong();
+		flags = in.readInt();
+		halfMoveClock = in.readInt();
+		fullMoveCounter = in.readInt();
+		hashKey = in.readLong();
+	}
+
+	private static long packSquares(int[] squares, int word) {
+		long packed = 0;
+		int first = word * SQUARES_PER_WORD;
+		for (int i = SQUARES_PER_WORD - 1; i >= 0; i--) {
+			packed = (packed << 4) | squares[first + i];
+		}
+
+		return packed;
+	}
+
+	/**
+	 * Return piece occupying a square.
+	 */
+	public final int getPiece(int square) {
+		long word;
+		switch (square / SQUARES_PER_WORD) {
+			case 0:
+				word = board0;
+				break;
+			case 1:
+				word = board1;
+				break;
+			case 2:
+				word = board2;
+				break;
+			default:
+				word = board3;
+				break;
+		}
+
+		return (int) (word >>> ((square % SQUARES_PER_WORD) * 4)) & 0xf;
+	}
+
+	public final boolean isWhiteMove() {
+		return (flags & 1) != 0;
+	}
+
+	/**
+	 * Bitmask describing castling rights.
+	 */
+	public final int getCastleMask() {
+		return (flags >>> 1) & 0xf;
+	}
+
+	/**
+	 * En passant square, or -1 if no ep possible.
+	 */
+	public final int getEpSquare() {
+		return ((flags >>> 5) & 0x7f) - 1;
+	}
+
+	/**
+	 * Number of half-moves since last 50-move reset.
+	 */
+	public final int getHalfMoveClock() {
+		return halfMoveClock;
+	}
+
+	/**
+	 * Game move number, starting from 1.
+	 */
+	public final int getFullMoveCounter() {
+		return fullMoveCounter;
+	}
+
+	/**
+	 * Return Zobrist hash value for the position.
+	 * Everything except the move counters are included in the hash value.
+	 */
+	public final long zobristHash() {
+		return hashKey;
+	}
+
+	/**
+	 * Return a hash value of the board, side to move, castling rights and en passant square
+	 * that is independent of the Zobrist hash, for verifying that two positions with the same
+	 * Zobrist hash are really the same.
+	 */
+	public final int verificationKey() {
+		long h = board0 * 0x9E3779B97F4A7C15L;
+		h = (h ^ board1) * 0xC2B2AE3D27D4EB4FL;
+		h = (h ^ board2) * 0x9E3779B97F4A7C15L;
+		h = (h ^ board3) * 0xC2B2AE3D27D4EB4FL;
+		h ^= flags;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Create a new mutable position with the state of this snapshot.
+	 */
+	public final Position toPosition() {
+		return new Position(this);
+	}
+
+	public String getFEN() {
+		return TextIO.toFEN(toPosition());
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		} else if (!(o instanceof PositionSnapshot)) {
+			return false;
+		}
+
+		PositionSnapshot other = (PositionSnapshot) o;
+		return hashKey == other.hashKey && flags == other.flags
+				&& halfMoveClock == other.halfMoveClock && fullMoveCounter == other.fullMoveCounter
+				&& board0 == other.board0 && board1 == other.board1
+				&& board2 == other.board2 && board3 == other.board3;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) hashKey;
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeLong(board0);
+		dest.writeLong(board1);
+		dest.writeLong(board2);
+		dest.writeLong(board3);
+		dest.writeInt(this.flags);
+		dest.writeInt(halfMoveClock);
+		dest.writeInt(fullMoveCounter);
+		dest.writeLong(hashKey);
+	}
+
+	public static final Creator<PositionSnapshot> CREATOR = new Creator<PositionSnapshot>() {
+		@Override
+		public PositionSnapshot createFromParcel(Parcel in) {
+			return new PositionSnapshot(in);
+		}
+
+		@Override
+		public PositionSnapshot[] newArray(int size) {
+			return new PositionSnapshot[size];
+		}
+	};
+
+	/**
+	 * Useful for debugging.
+	 */
+	@Override
+	public String toString() {
+		return getFEN();
+	}
+}
@@ -0,0 +1,48 @@
+package org.empyrn.darkknight.gamelogic;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the short algebraic notation of recently formatted moves. Formatting a move needs a
+ * legal move generation for disambiguation, while successive PVs of a search mostly repeat the
+ * same moves from the same positions, so after the first PV most moves are found here.
+ */
+public final class SanCache {
+	private static final int MAX_ENTRIES = 4096;
+
+	private static final Map<Long, String> cache = new LinkedHashMap<Long, String>(256, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private SanCache() {
+	}
+
+	/**
+	 * Get a move in short algebraic notation.
+	 *
+	 * @param pos  The position the move is made from. It is not modified.
+	 * @param move The move, in the form of {@link Move#toCompact()}
+	 */
+	public static String moveToString(Position pos, int move) {
+		// spread the 16 bits of the move over the whole key, so keys of different moves from the
+		// same position don't collide with those of other positions
+		Long key = pos.zobristHash() ^ ((long) move * 0x9E3779B97F4A7C15L);
+		synchronized (cache) {
+			String san = cache.get(key);
+			if (san != null) {
+				return san;
+			}
+		}
+
+		String san = TextIO.moveToString(pos, Move.fromCompact(move), false);
+		synchronized (cache) {
+			cache.put(key, san);
+		}
+
+		return san;
+	}
+}
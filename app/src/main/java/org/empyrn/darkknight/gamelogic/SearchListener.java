@@ -1,6 +1,5 @@
 package org.empyrn.darkknight.gamelogic;
 
-import java.util.ArrayList;
 import java.util.List;
 
 
@@ -9,9 +8,22 @@ import java.util.List;
  */
 public interface SearchListener {
     void notifyDepth(int depth);
-    void notifyCurrMove(Position pos, Move m, int moveNr);
-    void notifyPV(Position pos, int depth, int score, int time, int nodes, int nps,
-                  boolean isMate, boolean upperBound, boolean lowerBound, ArrayList<Move> pv);
+
+    /**
+     * @param move The move being searched, in the form of {@link Move#toCompact()}
+     */
+    void notifyCurrMove(PositionSnapshot pos, int move, int moveNr);
+
+    /**
+     * @param multiPV  Rank of the variation, starting at 1 for the best one. Searches for more
+     *                 than one variation report each of them separately.
+     * @param pv       The moves of the PV in the form of {@link Move#toCompact()}. The array is
+     *                 reused for later notifications, so it must not be kept.
+     * @param pvLength Number of moves in pv
+     */
+    void notifyPV(PositionSnapshot pos, int multiPV, int depth, int score, int time, int nodes,
+                  int nps, boolean isMate, boolean upperBound, boolean lowerBound, int[] pv,
+                  int pvLength);
     void notifyStats(int nodes, int nps, int time);
 	void notifyBookInfo(String bookInfo, List<Move> moveList);
 }
@@ -660,24 +660,43 @@ public final class TextIO {
 	 * @return A move object, or null if move has invalid syntax
 	 */
 	public static Move UCIstringToMove(String move) {
-		Move m = null;
 		if ((move.length() < 4) || (move.length() > 5))
 			return null;
 		int fromSq = TextIO.getSquare(move.substring(0, 2));
 		int toSq = TextIO.getSquare(move.substring(2, 4));
+		char prom = move.length() == 5 ? move.charAt(4) : ' ';
+		return UCIsquaresToMove(fromSq, toSq, prom);
+	}
+
+	/**
+	 * Create a move from the parts of a move in UCI format.
+	 *
+	 * @param prom The promotion character, or ' ' if not a promotion
+	 * @return The move, or null if the parts don't form a valid UCI move
+	 */
+	public static Move UCIsquaresToMove(int fromSq, int toSq, char prom) {
+		int compact = UCIsquaresToCompactMove(fromSq, toSq, prom);
+		return compact < 0 ? null : Move.fromCompact(compact);
+	}
+
+	/**
+	 * Like {@link #UCIsquaresToMove(int, int, char)}, but without creating a move object.
+	 *
+	 * @return The move in the form of {@link Move#toCompact()}, or -1 if the parts don't form a
+	 *         valid UCI move
+	 */
+	public static int UCIsquaresToCompactMove(int fromSq, int toSq, char prom) {
 		if ((fromSq < 0) || (toSq < 0)) {
-			return null;
+			return -1;
 		}
-		char prom = ' ';
 		boolean white = true;
-		if (move.length() == 5) {
-			prom = move.charAt(4);
+		if (prom != ' ') {
 			if (Position.getY(toSq) == 7) {
 				white = true;
 			} else if (Position.getY(toSq) == 0) {
 				white = false;
 			} else {
-				return null;
+				return -1;
 			}
 		}
 		int promoteTo;
@@ -698,10 +717,9 @@ public final class TextIO {
 				promoteTo = white ? Piece.WKNIGHT : Piece.BKNIGHT;
 				break;
 			default:
-				return null;
+				return -1;
 		}
-		m = new Move(fromSq, toSq, promoteTo);
-		return m;
+		return fromSq | (toSq << 6) | (promoteTo << 12);
 	}
 
 	/**
@@ -0,0 +1,340 @@
+package org.empyrn.darkknight.view;
+
+import android.content.SharedPreferences;
+import android.graphics.Typeface;
+import android.support.v7.widget.RecyclerView;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.BackgroundColorSpan;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import org.empyrn.darkknight.PGNOptions;
+import org.empyrn.darkknight.R;
+import org.empyrn.darkknight.gamelogic.GameTree;
+import org.empyrn.darkknight.gamelogic.PgnToken;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Renders PGN data as rows of a {@link RecyclerView}, so that only the visible part of the move
+ * list has to be laid out and drawn.
+ * <p/>
+ * Each mainline move pair, each variation line and each comment becomes its own row. Rows are
+ * built from the PGN tokens of a tree walk; when the walk is complete, only the rows that differ
+ * from the previous walk are reported as changed.
+ */
+public class MoveListAdapter extends RecyclerView.Adapter<MoveListAdapter.RowViewHolder>
+		implements PgnToken.PgnTokenReceiver {
+	private static final int INDENT_STEP = 15;
+
+	private final PGNOptions options;
+
+	private static final class Row {
+		final String text;
+		final int indent;
+		final boolean bold;
+
+		Row(String text, int indent, boolean bold) {
+			this.text = text;
+			this.indent = indent;
+			this.bold = bold;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Row)) {
+				return false;
+			}
+
+			Row other = (Row) o;
+			return indent == other.indent && bold == other.bold && text.equals(other.text);
+		}
+
+		@Override
+		public int hashCode() {
+			return text.hashCode() * 31 + indent * 2 + (bold ? 1 : 0);
+		}
+	}
+
+	private static final class NodeInfo {
+		final int row, l0, l1;
+
+		NodeInfo(int row, int l0, int l1) {
+			this.row = row;
+			this.l0 = l0;
+			this.l1 = l1;
+		}
+	}
+
+	static final class RowViewHolder extends RecyclerView.ViewHolder {
+		final TextView textView;
+
+		RowViewHolder(View itemView) {
+			super(itemView);
+			textView = (TextView) itemView;
+		}
+	}
+
+	private List<Row> rows = new ArrayList<>();
+	private HashMap<GameTree.Node, NodeInfo> nodeToRowPos = new HashMap<>();
+	private NodeInfo current;
+
+	// state of the tree walk in progress
+	private List<Row> pendingRows = new ArrayList<>();
+	private HashMap<GameTree.Node, NodeInfo> pendingNodeToRowPos = new HashMap<>();
+	private final StringBuilder rowText = new StringBuilder();
+	private int rowIndent = 0;
+	private boolean rowBold = false;
+	private int prevType = PgnToken.EOF;
+	private int nestLevel = 0;
+	private boolean pendingNewLine = false;
+	private boolean upToDate = false;
+
+	private final BackgroundColorSpan bgSpan = new BackgroundColorSpan(0xff888888);
+
+	public MoveListAdapter(SharedPreferences settings, PGNOptions options) {
+		this.options = options;
+		options.readPreferences(settings);
+	}
+
+	/**
+	 * Get the row holding the current move, or -1 if the current move isn't shown.
+	 */
+	public int getCurrentRow() {
+		return current != null ? current.row : -1;
+	}
+
+	@Override
+	public RowViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+		return new RowViewHolder(LayoutInflater.from(parent.getContext())
+				.inflate(R.layout.move_list_row, parent, false));
+	}
+
+	@Override
+	public void onBindViewHolder(RowViewHolder holder, int position) {
+		Row row = rows.get(position);
+		TextView textView = holder.textView;
+
+		if (current != null && current.row == position) {
+			SpannableString text = new SpannableString(row.text);
+			text.setSpan(bgSpan, current.l0, current.l1, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+			textView.setText(text);
+		} else {
+			textView.setText(row.text);
+		}
+
+		textView.setTypeface(Typeface.MONOSPACE, row.bold ? Typeface.BOLD : Typeface.NORMAL);
+		textView.setPadding(row.indent * INDENT_STEP, textView.getPaddingTop(),
+				textView.getPaddingRight(), textView.getPaddingBottom());
+	}
+
+	@Override
+	public int getItemCount() {
+		return rows.size();
+	}
+
+	private void newLine() {
+		if (rowText.length() > 0) {
+			pendingRows.add(new Row(rowText.toString(), rowIndent, rowBold));
+			rowText.setLength(0);
+		}
+
+		rowIndent = nestLevel;
+		rowBold = false;
+	}
+
+	@Override
+	public void processToken(GameTree.Node node, int type, String token) {
+		if ((prevType == PgnToken.RIGHT_BRACKET)
+				&& (type != PgnToken.LEFT_BRACKET)) {
+			if (!options.view.headers) {
+				pendingRows.clear();
+				pendingNodeToRowPos.clear();
+				rowText.setLength(0);
+			}
+		}
+		if (pendingNewLine) {
+			if (type != PgnToken.RIGHT_PAREN) {
+				newLine();
+				pendingNewLine = false;
+			}
+		}
+		switch (type) {
+			case PgnToken.STRING:
+				rowText.append(" \"");
+				rowText.append(token);
+				rowText.append('"');
+				break;
+			case PgnToken.INTEGER:
+				// start a new row for each full move in the mainline
+				if (nestLevel == 0) {
+					newLine();
+				}
+				if ((prevType != PgnToken.LEFT_PAREN) && rowText.length() > 0)
+					rowText.append(' ');
+				rowText.append(token);
+				break;
+			case PgnToken.PERIOD:
+				rowText.append('.');
+				break;
+			case PgnToken.ASTERISK:
+				rowText.append(" *");
+				break;
+			case PgnToken.LEFT_BRACKET:
+				rowText.append('[');
+				break;
+			case PgnToken.RIGHT_BRACKET:
+				rowText.append(']');
+				newLine();
+				break;
+			case PgnToken.LEFT_PAREN:
+				nestLevel++;
+				newLine();
+				rowText.append('(');
+				break;
+			case PgnToken.RIGHT_PAREN:
+				rowText.append(')');
+				nestLevel--;
+				pendingNewLine = true;
+				break;
+			case PgnToken.NAG:
+				rowText.append(GameTree.Node.nagStr(Integer.parseInt(token)));
+				break;
+			case PgnToken.SYMBOL: {
+				if ((prevType != PgnToken.RIGHT_BRACKET)
+						&& (prevType != PgnToken.LEFT_BRACKET) && rowText.length() > 0)
+					rowText.append(' ');
+				int l0 = rowText.length();
+				rowText.append(token);
+				int l1 = rowText.length();
+				pendingNodeToRowPos.put(node, new NodeInfo(pendingRows.size(), l0, l1));
+				if (nestLevel == 0)
+					rowBold = true;
+				break;
+			}
+			case PgnToken.COMMENT:
+				if (prevType == PgnToken.RIGHT_BRACKET) {
+				} else if (nestLevel == 0) {
+					nestLevel++;
+					newLine();
+					nestLevel--;
+				} else {
+					if ((prevType != PgnToken.LEFT_PAREN) && rowText.length() > 0) {
+						rowText.append(' ');
+					}
+				}
+				rowText.append(token.replaceAll("[ \t\r\n]+", " ").trim());
+				if (nestLevel == 0)
+					newLine();
+				break;
+			case PgnToken.EOF:
+				newLine();
+				applyPendingRows();
+				upToDate = true;
+				break;
+		}
+
+		prevType = type;
+	}
+
+	/**
+	 * Swap in the rows of the completed tree walk, notifying observers only about the range of
+	 * rows that actually changed.
+	 */
+	private void applyPendingRows() {
+		final int oldCount = rows.size();
+		final int newCount = pendingRows.size();
+		final int maxCommon = Math.min(oldCount, newCount);
+
+		int prefix = 0;
+		while (prefix < maxCommon && rows.get(prefix).equals(pendingRows.get(prefix))) {
+			prefix++;
+		}
+
+		int suffix = 0;
+		while (suffix < maxCommon - prefix
+				&& rows.get(oldCount - 1 - suffix).equals(pendingRows.get(newCount - 1 - suffix))) {
+			suffix++;
+		}
+
+		List<Row> tmpRows = rows;
+		rows = pendingRows;
+		pendingRows = tmpRows;
+		pendingRows.clear();
+
+		HashMap<GameTree.Node, NodeInfo> tmpPos = nodeToRowPos;
+		nodeToRowPos = pendingNodeToRowPos;
+		pendingNodeToRowPos = tmpPos;
+		pendingNodeToRowPos.clear();
+
+		final int changedOld = oldCount - prefix - suffix;
+		final int changedNew = newCount - prefix - suffix;
+		final int changed = Math.min(changedOld, changedNew);
+		if (changed > 0) {
+			notifyItemRangeChanged(prefix, changed);
+		}
+		if (changedNew > changedOld) {
+			notifyItemRangeInserted(prefix + changed, changedNew - changedOld);
+		} else if (changedOld > changedNew) {
+			notifyItemRangeRemoved(prefix + changed, changedOld - changedNew);
+		}
+
+		// drop the highlight; the current node is looked up again by the next call to setCurrent()
+		if (current != null) {
+			int row = current.row;
+			current = null;
+			if (row < prefix) {
+				notifyItemChanged(row);
+			} else if (row >= oldCount - suffix && row < oldCount) {
+				notifyItemChanged(row + newCount - oldCount);
+			}
+		}
+	}
+
+	@Override
+	public boolean isUpToDate() {
+		return upToDate;
+	}
+
+	@Override
+	public void clear() {
+		pendingRows.clear();
+		pendingNodeToRowPos.clear();
+		rowText.setLength(0);
+		rowIndent = 0;
+		rowBold = false;
+		prevType = PgnToken.EOF;
+		nestLevel = 0;
+		pendingNewLine = false;
+
+		upToDate = false;
+	}
+
+	@Override
+	public void setCurrent(GameTree.Node node) {
+		NodeInfo ni = nodeToRowPos.get(node);
+		if (ni == current) {
+			return;
+		}
+
+		if (current != null && current.row < rows.size()) {
+			notifyItemChanged(current.row);
+		}
+
+		current = ni;
+
+		if (current != null && current.row < rows.size()) {
+			notifyItemChanged(current.row);
+		}
+	}
+
+	@Override
+	public PGNOptions getPGNOptions() {
+		return options;
+	}
+}
@@ -9,7 +9,5 @@ LOCAL_CFLAGS    := -mandroid \
 	-DTARGET_OS=android -D__ANDROID__ \
 	-isystem $(SYSROOT)/usr/include
 
-LOCAL_STATIC_LIBRARIES := stockfish
-
 include $(BUILD_SHARED_LIBRARY)
 include $(LOCAL_PATH)/stockfish/Android.mk
@@ -1,2 +1,2 @@
 APP_ABI := armeabi armeabi-v7a x86 x86_64
-APP_STL := gnustl_shared
+APP_STL := gnustl_static
@@ -0,0 +1,202 @@
+#include <jni.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string>
+
+#include "stockfish/application.h"
+#include "stockfish/misc.h"
+#include "stockfish/move.h"
+#include "stockfish/search.h"
+#include "stockfish/square.h"
+#include "stockfish/uci.h"
+#include "stockfish/value.h"
+
+/*
+ * In-process binding of the engine. The search runs on the calling Java thread and reports to
+ * the listener object given to search(); principal variations are written as 16-bit moves, in the
+ * same layout as Move.toCompact(), to a direct ByteBuffer shared with the Java side.
+ */
+
+namespace {
+
+	/* Convert an engine move to the from | to << 6 | promoteTo << 12 layout used by Move. */
+	jint toCompactMove(Move m)
+	{
+		if (m == MOVE_NONE || m == MOVE_NULL)
+			return 0;
+
+		int from = move_from(m);
+		int to = move_to(m);
+		if (move_is_short_castle(m))
+			to = from + 2;
+		else if (move_is_long_castle(m))
+			to = from - 2;
+
+		int promoteTo = 0;
+		if (move_is_promotion(m)) {
+			static const int whitePieces[] = { 0, 0, 5, 4, 3, 2, 0 }; // indexed by PieceType
+			promoteTo = whitePieces[move_promotion_piece(m)];
+			if (square_rank(move_from(m)) == RANK_2)
+				promoteTo += 6;
+		}
+
+		return from | (to << 6) | (promoteTo << 12);
+	}
+
+	class JavaSearchObserver : public SearchObserver {
+	public:
+		JavaSearchObserver(JNIEnv* env, jobject listener, jobject pvBuffer)
+			: env(env), listener(listener)
+		{
+			pvData = static_cast<uint16_t*>(env->GetDirectBufferAddress(pvBuffer));
+			pvCapacity = (int) (env->GetDirectBufferCapacity(pvBuffer) / 2);
+
+			jclass cls = env->GetObjectClass(listener);
+			onDepth = env->GetMethodID(cls, "onDepth", "(I)V");
+			onCurrMove = env->GetMethodID(cls, "onCurrMove", "(II)V");
+			onPV = env->GetMethodID(cls, "onPV", "(IIIZIIIII)V");
+			onStats = env->GetMethodID(cls, "onStats", "(III)V");
+			onBestMove = env->GetMethodID(cls, "onBestMove", "(II)V");
+			env->DeleteLocalRef(cls);
+		}
+
+		bool isValid() const
+		{
+			return pvData && onDepth && onCurrMove && onPV && onStats && onBestMove;
+		}
+
+		virtual void depth(int depth)
+		{
+			env->CallVoidMethod(listener, onDepth, depth);
+			checkException();
+		}
+
+		virtual void current_move(Move m, int moveNumber)
+		{
+			env->CallVoidMethod(listener, onCurrMove, toCompactMove(m), moveNumber);
+			checkException();
+		}
+
+		virtual void pv(int multiPV, int depth, Value v, ValueType type, int time,
+		                int64_t nodes, int nps, const Move pv[])
+		{
+			int n = 0;
+			for (; n < pvCapacity && pv[n] != MOVE_NONE; n++)
+				pvData[n] = (uint16_t) toCompactMove(pv[n]);
+
+			bool isMate = abs(v) >= VALUE_MATE - 200;
+			int score;
+			if (!isMate)
+				score = value_to_centipawns(v);
+			else if (v > 0)
+				score = (VALUE_MATE - v + 1) / 2;
+			else
+				score = -(VALUE_MATE + v) / 2;
+
+			int bound = type == VALUE_TYPE_UPPER ? 1 : type == VALUE_TYPE_LOWER ? 2 : 0;
+			env->CallVoidMethod(listener, onPV, multiPV, depth, score, (jboolean) isMate, bound,
+					time, (jint) nodes, nps, n);
+			checkException();
+		}
+
+		virtual void stats(int64_t nodes, int nps, int time)
+		{
+			env->CallVoidMethod(listener, onStats, (jint) nodes, nps, time);
+			checkException();
+		}
+
+		virtual void best_move(Move bestMove, Move ponderMove)
+		{
+			env->CallVoidMethod(listener, onBestMove, toCompactMove(bestMove),
+					toCompactMove(ponderMove));
+			checkException();
+		}
+
+	private:
+		/* A listener that throws stops the search; the exception is raised when search() returns. */
+		void checkException()
+		{
+			if (env->ExceptionCheck())
+				set_stop_request(true);
+		}
+
+		JNIEnv* env;
+		jobject listener;
+		uint16_t* pvData;
+		int pvCapacity;
+		jmethodID onDepth, onCurrMove, onPV, onStats, onBestMove;
+	};
+
+	std::string toStdString(JNIEnv* env, jstring str)
+	{
+		const char* chars = env->GetStringUTFChars(str, NULL);
+		std::string ret(chars ? chars : "");
+		if (chars)
+			env->ReleaseStringUTFChars(str, chars);
+		return ret;
+	}
+}
+
+/*
+ * Class:     org_empyrn_darkknight_engine_InProcessEngine
+ * Method:    initEngine
+ * Signature: ()Ljava/lang/String;
+ */
+extern "C" JNIEXPORT jstring JNICALL Java_org_empyrn_darkknight_engine_InProcessEngine_initEngine
+		(JNIEnv* env, jclass cls)
+{
+	Application::initialize();
+	execute_uci_command("ucinewgame");
+	return env->NewStringUTF(engine_name().c_str());
+}
+
+/*
+ * Class:     org_empyrn_darkknight_engine_InProcessEngine
+ * Method:    executeCommand
+ * Signature: (Ljava/lang/String;)V
+ */
+extern "C" JNIEXPORT void JNICALL Java_org_empyrn_darkknight_engine_InProcessEngine_executeCommand
+		(JNIEnv* env, jclass cls, jstring command)
+{
+	execute_uci_command(toStdString(env, command));
+}
+
+/*
+ * Class:     org_empyrn_darkknight_engine_InProcessEngine
+ * Method:    search
+ * Signature: (Ljava/lang/String;Lorg/empyrn/darkknight/engine/InProcessEngine$Listener;Ljava/nio/ByteBuffer;)V
+ */
+extern "C" JNIEXPORT void JNICALL Java_org_empyrn_darkknight_engine_InProcessEngine_search
+		(JNIEnv* env, jclass cls, jstring goCommand, jobject listener, jobject pvBuffer)
+{
+	JavaSearchObserver observer(env, listener, pvBuffer);
+	if (!observer.isValid())
+		return;
+
+	std::string command = toStdString(env, goCommand);
+	set_search_observer(&observer);
+	execute_uci_command(command);
+	set_search_observer(NULL);
+}
+
+/*
+ * Class:     org_empyrn_darkknight_engine_InProcessEngine
+ * Method:    setStopRequest
+ * Signature: (Z)V
+ */
+extern "C" JNIEXPORT void JNICALL Java_org_empyrn_darkknight_engine_InProcessEngine_setStopRequest
+		(JNIEnv* env, jclass cls, jboolean stop)
+{
+	set_stop_request(stop);
+}
+
+/*
+ * Class:     org_empyrn_darkknight_engine_InProcessEngine
+ * Method:    setPonderhitRequest
+ * Signature: (Z)V
+ */
+extern "C" JNIEXPORT void JNICALL Java_org_empyrn_darkknight_engine_InProcessEngine_setPonderhitRequest
+		(JNIEnv* env, jclass cls, jboolean ponderhit)
+{
+	set_ponderhit_request(ponderhit);
+}
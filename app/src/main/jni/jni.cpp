@@ -1,136 +1,255 @@
 #include <string.h>
+#include <errno.h>
 #include <jni.h>
 #include <unistd.h>
 #include <stdlib.h>
 #include <signal.h>
 #include <fcntl.h>
-#include <deque>
-#include <vector>
 #include <sys/time.h>
+#include <sys/wait.h>
 
-int main(int argc, char* argv[]);
+/*
+ * The pipes and buffers of one engine process. Each NativePipedProcess holds a pointer to its
+ * own instance, so several engine processes can run at the same time.
+ */
+struct ChildProcess {
+	pid_t pid;
+	int fdFromChild;
+	int fdToChild;
+	char inBuf[8192];
+	int inStart;
+	int inEnd;
+};
 
-static int fdFromChild = -1;
-static int fdToChild = -1;
+static inline ChildProcess* toChildProcess(jlong handle) {
+	return reinterpret_cast<ChildProcess*>(static_cast<intptr_t>(handle));
+}
 
 /*
  * Class:     org_empyrn_darkknight_engine_NativePipedProcess
  * Method:    startProcess
- * Signature: ()V
+ * Signature: (Ljava/lang/String;I)J
  */
-extern "C" JNIEXPORT void JNICALL Java_org_empyrn_darkknight_engine_NativePipedProcess_startProcess
-		(JNIEnv* env, jobject obj)
+extern "C" JNIEXPORT jlong JNICALL Java_org_empyrn_darkknight_engine_NativePipedProcess_startProcess
+		(JNIEnv* env, jclass cls, jstring enginePath, jint niceIncrement)
 {
+	const char* path = env->GetStringUTFChars(enginePath, NULL);
+	if (!path)
+		return 0;
+
 	int fd1[2];		/* parent -> child */
     int fd2[2];		/* child -> parent */
-    if (pipe(fd1) < 0)
-    	exit(1);
-    if (pipe(fd2) < 0)
-    	exit(1);
+    if (pipe(fd1) < 0) {
+    	env->ReleaseStringUTFChars(enginePath, path);
+    	return 0;
+    }
+    if (pipe(fd2) < 0) {
+    	close(fd1[0]); close(fd1[1]);
+    	env->ReleaseStringUTFChars(enginePath, path);
+    	return 0;
+    }
+    // the parent's ends must not leak into engine processes started later, or those would keep
+    // this engine's stdin open after it is closed here
+    fcntl(fd1[1], F_SETFD, FD_CLOEXEC);
+    fcntl(fd2[0], F_SETFD, FD_CLOEXEC);
     int childpid = fork();
     if (childpid == -1) {
-        exit(1);
+    	close(fd1[0]); close(fd1[1]);
+    	close(fd2[0]); close(fd2[1]);
+    	env->ReleaseStringUTFChars(enginePath, path);
+    	return 0;
     }
     if (childpid == 0) {
+    	// only async-signal-safe calls until exec; the engine then runs as its own process image
+    	// and shares nothing with the app's heap
     	close(fd1[1]);
     	close(fd2[0]);
-    	close(0); dup(fd1[0]); close(fd1[0]);
-    	close(1); dup(fd2[1]); close(fd2[1]);
-    	close(2); dup(1);
-    	static char* argv[] = {"stockfish", NULL};
-    	nice(5);
-   	    main(1, argv);
-    	_exit(0);
-    } else {
-    	close(fd1[0]);
-    	close(fd2[1]);
-    	fdFromChild = fd2[0];
-    	fdToChild = fd1[1];
-	    fcntl(fdFromChild, F_SETFL, O_NONBLOCK);
+    	dup2(fd1[0], 0); close(fd1[0]);
+    	dup2(fd2[1], 1); close(fd2[1]);
+    	dup2(1, 2);
+    	// before exec, so that every thread the engine starts inherits it
+    	nice(niceIncrement);
+    	execl(path, "stockfish", (char*) NULL);
+    	_exit(127);
     }
+
+	env->ReleaseStringUTFChars(enginePath, path);
+	close(fd1[0]);
+	close(fd2[1]);
+
+	ChildProcess* proc = new ChildProcess();
+	proc->pid = childpid;
+	proc->fdFromChild = fd2[0];
+	proc->fdToChild = fd1[1];
+	proc->inStart = 0;
+	proc->inEnd = 0;
+	fcntl(proc->fdFromChild, F_SETFL, O_NONBLOCK);
+	return static_cast<jlong>(reinterpret_cast<intptr_t>(proc));
 }
 
+/*
+ * Class:     org_empyrn_darkknight_engine_NativePipedProcess
+ * Method:    killProcess
+ * Signature: (J)V
+ */
+extern "C" JNIEXPORT void JNICALL Java_org_empyrn_darkknight_engine_NativePipedProcess_killProcess
+		(JNIEnv* env, jclass cls, jlong handle)
+{
+	ChildProcess* proc = toChildProcess(handle);
+	if (!proc)
+		return;
 
-static std::deque<char> inBuf;
+	// the child isn't reaped until closeProcess, so its pid can't have been reused yet
+	kill(proc->pid, SIGKILL);
+}
 
-static bool getNextChar(int& c, int timeoutMillis) {
-	if (inBuf.empty()) {
-	    fd_set readfds, writefds;
-		FD_ZERO(&readfds);
-		FD_SET(fdFromChild, &readfds);
-		struct timeval tv;
-		tv.tv_sec = timeoutMillis / 1000;
-		tv.tv_usec = (timeoutMillis % 1000) * 1000;
-		int ret = select(fdFromChild + 1, &readfds, NULL, NULL, &tv);
-		if (ret < 0)
-			return false;
+/*
+ * Class:     org_empyrn_darkknight_engine_NativePipedProcess
+ * Method:    closeProcess
+ * Signature: (J)V
+ */
+extern "C" JNIEXPORT void JNICALL Java_org_empyrn_darkknight_engine_NativePipedProcess_closeProcess
+		(JNIEnv* env, jclass cls, jlong handle)
+{
+	ChildProcess* proc = toChildProcess(handle);
+	if (!proc)
+		return;
+
+	close(proc->fdToChild);
+	close(proc->fdFromChild);
+
+	// the engine has been told to quit; don't leave it running or as a zombie if it hasn't yet
+	if (waitpid(proc->pid, NULL, WNOHANG) == 0) {
+		kill(proc->pid, SIGKILL);
+		waitpid(proc->pid, NULL, 0);
+	}
 
-		static char buf[4096];
-		int len = read(fdFromChild, &buf[0], sizeof(buf));
-		for (int i = 0; i < len; i++)
-			inBuf.push_back(buf[i]);
+	delete proc;
+}
+
+/*
+ * Move the complete lines buffered for the process to dst, each terminated by a single '\n'.
+ * Empty lines are dropped. Returns the number of bytes written to dst.
+ */
+static int takeLines(ChildProcess* proc, char* dst, int dstCapacity) {
+	int written = 0;
+	int lineStart = proc->inStart;
+	for (int i = proc->inStart; i < proc->inEnd; i++) {
+		char c = proc->inBuf[i];
+		if (c != '\n' && c != '\r')
+			continue;
+
+		int len = i - lineStart;
+		if (len > 0) {
+			if (written + len + 1 > dstCapacity)
+				break;
+			memcpy(dst + written, &proc->inBuf[lineStart], len);
+			written += len;
+			dst[written++] = '\n';
+		}
+		lineStart = i + 1;
 	}
-	if (inBuf.empty()) {
-		c = -1;
-		return true;
+	proc->inStart = lineStart;
+
+	// compact the partial line left at the end, so the next read can append to it
+	if (proc->inStart > 0) {
+		int remaining = proc->inEnd - proc->inStart;
+		memmove(&proc->inBuf[0], &proc->inBuf[proc->inStart], remaining);
+		proc->inStart = 0;
+		proc->inEnd = remaining;
+	}
+
+	// a line that doesn't fit in the input buffer is passed on in pieces
+	if (written == 0 && proc->inEnd == (int) sizeof(proc->inBuf) && dstCapacity > proc->inEnd) {
+		memcpy(dst, &proc->inBuf[0], proc->inEnd);
+		written = proc->inEnd;
+		dst[written++] = '\n';
+		proc->inEnd = 0;
 	}
-	c = inBuf.front();
-	inBuf.pop_front();
-	return true;
+
+	return written;
 }
 
-static std::vector<char> lineBuf;
 /*
  * Class:     org_empyrn_darkknight_engine_NativePipedProcess
- * Method:    readFromProcess
- * Signature: (I)Ljava/lang/String;
+ * Method:    readLines
+ * Signature: (JLjava/nio/ByteBuffer;I)I
+ *
+ * Fill dst with as many complete lines as are available, reading from the process in whole
+ * chunks. Waits at most timeoutMillis for the first line. Returns the number of bytes written,
+ * 0 on timeout, or -1 on I/O error or end of file.
  */
-extern "C" JNIEXPORT jstring JNICALL Java_org_empyrn_darkknight_engine_NativePipedProcess_readFromProcess
-		(JNIEnv* env, jobject obj, jint timeoutMillis)
+extern "C" JNIEXPORT jint JNICALL Java_org_empyrn_darkknight_engine_NativePipedProcess_readLines
+		(JNIEnv* env, jclass cls, jlong handle, jobject dst, jint timeoutMillis)
 {
-	struct timeval tv0, tv1;
+	ChildProcess* proc = toChildProcess(handle);
+	char* dstData = static_cast<char*>(env->GetDirectBufferAddress(dst));
+	if (!proc || !dstData)
+		return -1;
+	int dstCapacity = (int) env->GetDirectBufferCapacity(dst);
+
+	struct timeval deadline;
+	gettimeofday(&deadline, NULL);
+	deadline.tv_sec += timeoutMillis / 1000;
+	deadline.tv_usec += (timeoutMillis % 1000) * 1000;
+	if (deadline.tv_usec >= 1000000) {
+		deadline.tv_sec++;
+		deadline.tv_usec -= 1000000;
+	}
+
 	while (true) {
-		int c;
-		gettimeofday(&tv0, NULL);
-		if (!getNextChar(c, timeoutMillis))
-			return 0; // Error
-		gettimeofday(&tv1, NULL);
-		int elapsedMillis = (tv1.tv_sec - tv0.tv_sec) * 1000 + (tv1.tv_usec - tv0.tv_usec) / 1000;
-		if (elapsedMillis > 0) {
-			timeoutMillis -= elapsedMillis;
-			if (timeoutMillis < 0) timeoutMillis = 0;
-		}
-		if (c == -1) { // Timeout
-			static char emptyString = 0;
-			return env->NewStringUTF(&emptyString);
-		}
-		if (c == '\n' || (c == '\r')) {
-			if (lineBuf.size() > 0) {
-				lineBuf.push_back(0);
-				jstring ret = env->NewStringUTF(&lineBuf[0]);
-				lineBuf.clear();
-				return ret;
-			}
-		} else {
-			lineBuf.push_back((char)c);
-		}
+		int written = takeLines(proc, dstData, dstCapacity);
+		if (written > 0)
+			return written;
+
+		struct timeval now;
+		gettimeofday(&now, NULL);
+		long remainingMillis = (deadline.tv_sec - now.tv_sec) * 1000
+				+ (deadline.tv_usec - now.tv_usec) / 1000;
+		if (remainingMillis < 0)
+			remainingMillis = 0;
+
+		fd_set readfds;
+		FD_ZERO(&readfds);
+		FD_SET(proc->fdFromChild, &readfds);
+		struct timeval tv;
+		tv.tv_sec = remainingMillis / 1000;
+		tv.tv_usec = (remainingMillis % 1000) * 1000;
+		int ret = select(proc->fdFromChild + 1, &readfds, NULL, NULL, &tv);
+		if (ret < 0 && errno == EINTR)
+			continue;
+		if (ret < 0)
+			return -1;
+		if (ret == 0)
+			return 0; // Timeout
+
+		int len = read(proc->fdFromChild, &proc->inBuf[proc->inEnd], sizeof(proc->inBuf) - proc->inEnd);
+		if (len == 0)
+			return -1; // End of file, the process has exited
+		if (len < 0)
+			continue; // Nothing to read after all; wait again
+		proc->inEnd += len;
 	}
 }
 
 /*
  * Class:     org_empyrn_darkknight_engine_NativePipedProcess
  * Method:    writeToProcess
- * Signature: (Ljava/lang/String;)V
+ * Signature: (JLjava/lang/String;)V
  */
 extern "C" JNIEXPORT void JNICALL Java_org_empyrn_darkknight_engine_NativePipedProcess_writeToProcess
-		(JNIEnv* env, jobject obj, jstring msg)
+		(JNIEnv* env, jclass cls, jlong handle, jstring msg)
 {
+	ChildProcess* proc = toChildProcess(handle);
+	if (!proc)
+		return;
+
     const char* str = env->GetStringUTFChars(msg, NULL);
     if (str) {
     	int len = strlen(str);
     	int written = 0;
     	while (written < len) {
-    		int n = write(fdToChild, &str[written], len - written);
+    		int n = write(proc->fdToChild, &str[written], len - written);
     		if (n <= 0)
     			break;
     		written += n;
@@ -1,20 +1,37 @@
 LOCAL_PATH := $(call my-dir)
 
-include $(CLEAR_VARS)
-
-LOCAL_MODULE    := stockfish
-LOCAL_SRC_FILES := \
+STOCKFISH_SRC_FILES := \
 	application.cpp   evaluate.cpp  move.cpp      search.cpp \
 	benchmark.cpp    history.cpp   movegen.cpp   tt.cpp \
-	bitbase.cpp      main.cpp      movepick.cpp  uci.cpp \
+	bitbase.cpp                    movepick.cpp  uci.cpp \
 	bitboard.cpp     pawns.cpp     ucioption.cpp \
 	book.cpp         material.cpp  piece.cpp     value.cpp \
 	direction.cpp    mersenne.cpp  position.cpp \
 	endgame.cpp      misc.cpp      san.cpp
 
-LOCAL_CFLAGS    := -mandroid \
+STOCKFISH_CFLAGS := -mandroid \
 	-DTARGET_OS=android -D__ANDROID__ \
 	-isystem $(SYSROOT)/usr/include \
 	-DNO_PREFETCH=1
 
-include $(BUILD_STATIC_LIBRARY)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE    := stockfish
+LOCAL_SRC_FILES := $(STOCKFISH_SRC_FILES) main.cpp
+
+LOCAL_CFLAGS    := $(STOCKFISH_CFLAGS) -fPIE
+
+LOCAL_LDFLAGS   := -fPIE -pie
+
+# built as a standalone executable, which the app starts as a separate process
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+# the same engine linked into a JNI library, for running searches inside the app process
+LOCAL_MODULE    := stockfishjni
+LOCAL_SRC_FILES := $(STOCKFISH_SRC_FILES) ../engine_jni.cpp
+
+LOCAL_CFLAGS    := $(STOCKFISH_CFLAGS)
+
+include $(BUILD_SHARED_LIBRARY)
@@ -29,6 +29,10 @@
 #include <iostream>
 #include <sstream>
 
+#if !defined(_MSC_VER)
+#  include <unistd.h>
+#endif
+
 #include "book.h"
 #include "evaluate.h"
 #include "history.h"
@@ -266,6 +270,13 @@ namespace {
   bool UseLogFile;
   std::ofstream LogFile;
 
+  // In-process search output and command flags. When an observer is set, the
+  // search reports to it instead of standard output, and polls StopRequest and
+  // PonderhitRequest instead of reading commands from standard input.
+  SearchObserver* Observer = NULL;
+  volatile bool StopRequest = false;
+  volatile bool PonderhitRequest = false;
+
   // Multi-threads related variables
   Depth MinimumSplitDepth;
   int MaxThreadsPerSplitPoint;
@@ -335,6 +346,25 @@ void exit_threads() { TM.exit_threads(); }
 int64_t nodes_searched() { return TM.nodes_searched(); }
 
 
+/// set_search_observer() installs the observer receiving search output, or
+/// restores the UCI text output when called with NULL.
+
+void set_search_observer(SearchObserver* observer) { Observer = observer; }
+
+
+/// set_stop_request() sets or clears the flag that stops an in-process search.
+/// It may be called from any thread; the search thread picks it up in poll().
+
+void set_stop_request(bool stop) { StopRequest = stop; }
+
+
+/// set_ponderhit_request() sets or clears the flag that tells an in-process
+/// ponder search that the opponent played the expected move. It may be called
+/// from any thread; the search thread picks it up in poll().
+
+void set_ponderhit_request(bool ponderhit) { PonderhitRequest = ponderhit; }
+
+
 /// init_search() is called during startup. It initializes various lookup tables
 
 void init_search() {
@@ -444,7 +474,10 @@ bool think(const Position& pos, bool infinite, bool ponder, int side_to_move,
           if (PonderSearch)
               wait_for_stop_or_ponderhit();
 
-          cout << "bestmove " << bookMove << endl;
+          if (Observer)
+              Observer->best_move(bookMove, MOVE_NONE);
+          else
+              cout << "bestmove " << bookMove << endl;
           return true;
       }
   }
@@ -621,13 +654,21 @@ namespace {
 
     // Print RootMoveList startup scoring to the standard output,
     // so to output information also for iteration 1.
-    cout << "info depth " << 1
-         << "\ninfo depth " << 1
-         << " score " << value_to_string(rml.get_move_score(0))
-         << " time " << current_search_time()
-         << " nodes " << TM.nodes_searched()
-         << " nps " << nps()
-         << " pv " << rml.get_move(0) << "\n";
+    if (Observer)
+    {
+        Move firstPv[2] = { rml.get_move(0), MOVE_NONE };
+        Observer->depth(1);
+        Observer->pv(1, 1, rml.get_move_score(0), VALUE_TYPE_EXACT, current_search_time(),
+                     TM.nodes_searched(), nps(), firstPv);
+    }
+    else
+        cout << "info depth " << 1
+             << "\ninfo depth " << 1
+             << " score " << value_to_string(rml.get_move_score(0))
+             << " time " << current_search_time()
+             << " nodes " << TM.nodes_searched()
+             << " nps " << nps()
+             << " pv " << rml.get_move(0) << "\n";
 
     // Initialize
     TT.new_search();
@@ -649,7 +690,10 @@ namespace {
         Iteration++;
         BestMoveChangesByIteration[Iteration] = 0;
 
-        cout << "info depth " << Iteration << endl;
+        if (Observer)
+            Observer->depth(Iteration);
+        else
+            cout << "info depth " << Iteration << endl;
 
         // Calculate dynamic aspiration window based on previous iterations
         if (MultiPV == 1 && Iteration >= 6 && abs(ValueByIteration[Iteration - 1]) < VALUE_KNOWN_WIN)
@@ -735,6 +779,8 @@ namespace {
     // best move before we are told to do so.
     if (!AbortSearch && (PonderSearch || InfiniteSearch))
         wait_for_stop_or_ponderhit();
+    else if (Observer)
+        Observer->stats(TM.nodes_searched(), nps(), current_search_time());
     else
         // Print final search statistics
         cout << "info nodes " << TM.nodes_searched()
@@ -751,12 +797,17 @@ namespace {
 
     assert(pv[0] != MOVE_NONE);
 
-    cout << "bestmove " << pv[0];
+    if (Observer)
+        Observer->best_move(pv[0], pv[1]);
+    else
+    {
+        cout << "bestmove " << pv[0];
 
-    if (pv[1] != MOVE_NONE)
-        cout << " ponder " << pv[1];
+        if (pv[1] != MOVE_NONE)
+            cout << " ponder " << pv[1];
 
-    cout << endl;
+        cout << endl;
+    }
 
     if (UseLogFile)
     {
@@ -842,8 +893,13 @@ namespace {
             move = ss->currentMove = rml.get_move(i);
 
             if (current_search_time() >= 1000)
-                cout << "info currmove " << move
-                     << " currmovenumber " << i + 1 << endl;
+            {
+                if (Observer)
+                    Observer->current_move(move, i + 1);
+                else
+                    cout << "info currmove " << move
+                         << " currmovenumber " << i + 1 << endl;
+            }
 
             moveIsCheck = pos.move_is_check(move);
             captureOrPromotion = pos.move_is_capture_or_promotion(move);
@@ -999,6 +1055,20 @@ namespace {
                     rml.sort_multipv(i);
                     for (int j = 0; j < Min(MultiPV, rml.move_count()); j++)
                     {
+                        if (Observer)
+                        {
+                            Move multiPv[PLY_MAX_PLUS_2];
+                            int k = 0;
+                            for ( ; rml.get_move_pv(j, k) != MOVE_NONE && k < PLY_MAX; k++)
+                                multiPv[k] = rml.get_move_pv(j, k);
+
+                            multiPv[k] = MOVE_NONE;
+                            Observer->pv(j + 1, (j <= i ? Iteration : Iteration - 1),
+                                         rml.get_move_score(j), VALUE_TYPE_EXACT,
+                                         current_search_time(), TM.nodes_searched(), nps(), multiPv);
+                            continue;
+                        }
+
                         cout << "info multipv " << j + 1
                              << " score " << value_to_string(rml.get_move_score(j))
                              << " depth " << (j <= i ? Iteration : Iteration - 1)
@@ -2109,8 +2179,18 @@ namespace {
     static int lastInfoTime;
     int t = current_search_time();
 
-    //  Poll for input
-    if (Bioskey())
+    //  Poll for input. An in-process search only listens to its stop flag.
+    if (Observer)
+    {
+        if (StopRequest)
+        {
+            AbortSearch = true;
+            PonderSearch = false;
+        }
+        else if (PonderhitRequest && PonderSearch)
+            ponderhit();
+    }
+    else if (Bioskey())
     {
         // We are line oriented, don't read single chars
         std::string command;
@@ -2125,7 +2205,7 @@ namespace {
             Quit = true;
             return;
         }
-        else if (command == "stopListening")
+        else if (command == "stop")
         {
             AbortSearch = true;
             PonderSearch = false;
@@ -2153,11 +2233,14 @@ namespace {
         if (dbg_show_hit_rate)
             dbg_print_hit_rate();
 
-        cout << "info nodes " << TM.nodes_searched() << " nps " << nps()
-             << " time " << t << " hashfull " << TT.full() << endl;
+        if (Observer)
+            Observer->stats(TM.nodes_searched(), nps(), t);
+        else
+            cout << "info nodes " << TM.nodes_searched() << " nps " << nps()
+                 << " time " << t << " hashfull " << TT.full() << endl;
     }
 
-    // Should we stopListening the search?
+    // Should we stop the search?
     if (PonderSearch)
         return;
 
@@ -2218,12 +2301,25 @@ namespace {
   // wait_for_stop_or_ponderhit() is called when the maximum depth is reached
   // while the program is pondering. The point is to work around a wrinkle in
   // the UCI protocol: When pondering, the engine is not allowed to give a
-  // "bestmove" before the GUI sends it a "stopListening" or "ponderhit" command.
+  // "bestmove" before the GUI sends it a "stop" or "ponderhit" command.
   // We simply wait here until one of these commands is sent, and return,
   // after which the bestmove and pondermove will be printed (in id_loop()).
 
   void wait_for_stop_or_ponderhit() {
 
+    if (Observer)
+    {
+        while (!StopRequest && !PonderhitRequest)
+        {
+#if !defined(_MSC_VER)
+            usleep(10000);
+#else
+            Sleep(10);
+#endif
+        }
+        return;
+    }
+
     std::string command;
 
     while (true)
@@ -2236,7 +2332,7 @@ namespace {
             Quit = true;
             break;
         }
-        else if (command == "ponderhit" || command == "stopListening")
+        else if (command == "ponderhit" || command == "stop")
             break;
     }
   }
@@ -2247,18 +2343,25 @@ namespace {
 
   void print_pv_info(const Position& pos, Move pv[], Value alpha, Value beta, Value value) {
 
-    cout << "info depth " << Iteration
-         << " score "     << value_to_string(value)
-         << (value >= beta ? " lowerbound" : value <= alpha ? " upperbound" : "")
-         << " time "  << current_search_time()
-         << " nodes " << TM.nodes_searched()
-         << " nps "   << nps()
-         << " pv ";
-
-    for (Move* m = pv; *m != MOVE_NONE; m++)
-        cout << *m << " ";
-
-    cout << endl;
+    if (Observer)
+        Observer->pv(1, Iteration, value,
+                     value >= beta ? VALUE_TYPE_LOWER : value <= alpha ? VALUE_TYPE_UPPER : VALUE_TYPE_EXACT,
+                     current_search_time(), TM.nodes_searched(), nps(), pv);
+    else
+    {
+        cout << "info depth " << Iteration
+             << " score "     << value_to_string(value)
+             << (value >= beta ? " lowerbound" : value <= alpha ? " upperbound" : "")
+             << " time "  << current_search_time()
+             << " nodes " << TM.nodes_searched()
+             << " nps "   << nps()
+             << " pv ";
+
+        for (Move* m = pv; *m != MOVE_NONE; m++)
+            cout << *m << " ";
+
+        cout << endl;
+    }
 
     if (UseLogFile)
     {
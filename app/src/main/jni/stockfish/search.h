@@ -65,6 +65,21 @@ struct SearchStack {
 };
 
 
+/// SearchObserver receives the search output in place of the UCI text written
+/// to standard output, when the search is driven in-process instead of from
+/// uci_main_loop(). All calls are made from the thread that called think().
+
+struct SearchObserver {
+  virtual ~SearchObserver() {}
+  virtual void depth(int depth) = 0;
+  virtual void current_move(Move m, int moveNumber) = 0;
+  virtual void pv(int multiPV, int depth, Value v, ValueType type, int time,
+                  int64_t nodes, int nps, const Move pv[]) = 0;
+  virtual void stats(int64_t nodes, int nps, int time) = 0;
+  virtual void best_move(Move bestMove, Move ponderMove) = 0;
+};
+
+
 ////
 //// Prototypes
 ////
@@ -77,6 +92,9 @@ extern bool think(const Position &pos, bool infinite, bool ponder, int side_to_m
                   int maxNodes, int maxTime, Move searchMoves[]);
 extern int perft(Position &pos, Depth depth);
 extern int64_t nodes_searched();
+extern void set_search_observer(SearchObserver* observer);
+extern void set_stop_request(bool stop);
+extern void set_ponderhit_request(bool ponderhit);
 
 
 #endif // !defined(SEARCH_H_INCLUDED)
@@ -91,6 +91,16 @@ void uci_main_loop() {
 }
 
 
+/// execute_uci_command() runs a single UCI command without going through
+/// standard input, for callers driving the engine in-process. A "go" command
+/// returns only when the search is finished. Returns false on "quit".
+
+bool execute_uci_command(const string& command) {
+
+  return handle_command(command);
+}
+
+
 ////
 //// Local functions
 ////
@@ -21,11 +21,19 @@
 #if !defined(UCI_H_INCLUDED)
 #define UCI_H_INCLUDED
 
+////
+//// Includes
+////
+
+#include <string>
+
+
 ////
 //// Prototypes
 ////
 
 extern void uci_main_loop();
+extern bool execute_uci_command(const std::string& command);
 
 
 #endif // !defined(UCI_H_INCLUDED)